@@ -0,0 +1,71 @@
+package org.toylisp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of calling functions and of looking up symbols in nested scopes.
+ *
+ * @author jerry created 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CallBenchmark {
+
+    // Number of scopes pushed between the lookup and the root env
+    @Param({"0", "4", "16"})
+    public int depth;
+
+    private final Symbol name = Symbol.intern("bench-value");
+    private IFunc identity;
+    private IFunc add;
+    private Env env;
+    private Long one = 1L;
+
+    @Setup
+    public void setup() {
+        Interpreter lisp = new Interpreter();
+        identity = (IFunc) lisp.eval("(lambda (x) x)");
+        add = (IFunc) lisp.eval("(lambda (x y) (+ x y))");
+        lisp.eval("(def bench-value 42)");
+        env = lisp.getEnv();
+        for (int i = 0; i < depth; i++) {
+            env = env.push();
+        }
+    }
+
+    @Benchmark
+    public Object invokeIdentity() {
+        return identity.invoke1(one);
+    }
+
+    @Benchmark
+    public Object invokeAdd() {
+        return add.invoke2(one, one);
+    }
+
+    @Benchmark
+    public Object invokeBuiltin() {
+        return Runtime.plus.invoke2(one, one);
+    }
+
+    @Benchmark
+    public Object envGet() {
+        return env.get(name);
+    }
+
+}
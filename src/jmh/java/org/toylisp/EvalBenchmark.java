@@ -0,0 +1,63 @@
+package org.toylisp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation of whole programs: recursive calls, deep non tail recursion and list
+ * processing.
+ *
+ * @author jerry created 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EvalBenchmark {
+
+    private Interpreter lisp;
+    private Object fib;
+    private Object ackermann;
+    private Object map;
+
+    @Setup
+    public void setup() {
+        lisp = new Interpreter();
+        lisp.eval("(defun fib (n) (cond ((= n 0) 0) ((= n 1) 1) (t (+ (fib (- n 1)) (fib (- n 2))))))");
+        lisp.eval("(defun ack (m n)" +
+                  "  (cond ((= m 0) (+ n 1))" +
+                  "        ((= n 0) (ack (- m 1) 1))" +
+                  "        (t (ack (- m 1) (ack m (- n 1))))))");
+        lisp.eval("(def numbers (map (lambda (x) x) (range 1000)))");
+        fib = Reader.read("(fib 20)").get(0);
+        ackermann = Reader.read("(ack 2 9)").get(0);
+        map = Reader.read("(map (lambda (x) (* x x)) numbers)").get(0);
+    }
+
+    @Benchmark
+    public Object fib() {
+        return lisp.eval(fib);
+    }
+
+    @Benchmark
+    public Object ackermann() {
+        return lisp.eval(ackermann);
+    }
+
+    @Benchmark
+    public Object map() {
+        return lisp.eval(map);
+    }
+
+}
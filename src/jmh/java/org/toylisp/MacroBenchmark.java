@@ -0,0 +1,64 @@
+package org.toylisp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Expansion of the let and if macros of the core library, and list concatenation, which
+ * backquoted templates are built with.
+ *
+ * @author jerry created 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MacroBenchmark {
+
+    private Env env;
+    private Object let;
+    private Object ifForm;
+    private Cons list1;
+    private Cons list2;
+
+    @Setup
+    public void setup() {
+        env = new Interpreter().getEnv();
+        let = Reader.read("(let ((x 1) (y 2) (z 3)) (+ x y z))").get(0);
+        ifForm = Reader.read("(if (= x 1) (prn x) (prn y))").get(0);
+        list1 = (Cons) Reader.read("(a b c d e f g h i j)").get(0);
+        list2 = (Cons) Reader.read("(k l m n o p q r s t)").get(0);
+    }
+
+    @Benchmark
+    public Object expandLet() {
+        return Runtime.macroExpand(let, env);
+    }
+
+    @Benchmark
+    public Object expandIf() {
+        return Runtime.macroExpand(ifForm, env);
+    }
+
+    @Benchmark
+    public Object evalLet() {
+        return Runtime.eval(let, env);
+    }
+
+    @Benchmark
+    public Cons concat() {
+        return Cons.concat(list1, list2);
+    }
+
+}
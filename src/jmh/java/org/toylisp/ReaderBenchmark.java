@@ -0,0 +1,68 @@
+package org.toylisp;
+
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reader throughput on a generated source of function definitions, quoted data and strings.
+ *
+ * @author jerry created 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReaderBenchmark {
+
+    // Number of top level forms in the source
+    @Param({"1000", "10000"})
+    public int forms;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+        StringBuilder buf = new StringBuilder(forms * 100);
+        for (int i = 0; i < forms; i++) {
+            buf.append("(defun f").append(i).append(" (x y)\n")
+               .append("  (cond ((= x ").append(i).append(") '(a b \"c\" 12345678901234567890))\n")
+               .append("        (t `(,x ,@y [1 2] {\"k\" ").append(i).append("}))))\n");
+        }
+        source = buf.toString();
+    }
+
+    @Benchmark
+    public List<String> tokenize() {
+        return Reader.tokenize(source);
+    }
+
+    @Benchmark
+    public List<Object> read() {
+        return Reader.read(source);
+    }
+
+    @Benchmark
+    public void stream(Blackhole bh) {
+        Iterator<Object> forms = Reader.stream(new StringReader(source));
+        while (forms.hasNext()) {
+            bh.consume(forms.next());
+        }
+    }
+
+}
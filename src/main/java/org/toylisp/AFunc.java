@@ -0,0 +1,39 @@
+package org.toylisp;
+
+/**
+ * Base class for functions. The fixed arity entry points fall back to
+ * {@link #invoke(Object...)}, subclasses override the ones they can run without an
+ * argument array.
+ *
+ * @author jerry created 18/10/26
+ */
+public abstract class AFunc implements IFunc {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    @Override
+    public Object invoke0() {
+        return invoke(NO_ARGS);
+    }
+
+    @Override
+    public Object invoke1(Object arg1) {
+        return invoke(new Object[]{arg1});
+    }
+
+    @Override
+    public Object invoke2(Object arg1, Object arg2) {
+        return invoke(new Object[]{arg1, arg2});
+    }
+
+    @Override
+    public Object invoke3(Object arg1, Object arg2, Object arg3) {
+        return invoke(new Object[]{arg1, arg2, arg3});
+    }
+
+    @Override
+    public Object invoke4(Object arg1, Object arg2, Object arg3, Object arg4) {
+        return invoke(new Object[]{arg1, arg2, arg3, arg4});
+    }
+
+}
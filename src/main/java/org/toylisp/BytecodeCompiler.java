@@ -0,0 +1,449 @@
+package org.toylisp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles the analyzed body of a hot function into a JVM class extending
+ * {@link CompiledBody}, so that HotSpot can optimize lisp code like any other Java method.
+ * <br/>
+ *
+ * Constants, local and global references, cond, do and function calls are turned into
+ * bytecode. Every other node is kept in the constant table and evaluated through
+ * {@link Node#eval(Env)}, so the generated code behaves exactly like the interpreter.
+ * Each class gets its own class loader and is unloaded together with the function.
+ *
+ * @author jerry created 18/10/26
+ */
+final class BytecodeCompiler {
+
+    private static final String BASE_CLASS = "org/toylisp/CompiledBody";
+    private static final String PACKAGE = "org/toylisp/generated/";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String ENV_DESC = "Lorg/toylisp/Env;";
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    // Java 5 class files are verified by type inference, so no stack map frames are needed
+    private static final int CLASS_VERSION = 49;
+    private static final int MAX_BRANCH = Short.MAX_VALUE;
+    private static final int MAX_LOCALS = 255;
+    private static final int MAX_FIXED_ARITY = 4;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final List<Object> constants = new ArrayList<>();
+    private byte[] code = new byte[256];
+    private int length;
+    private int stack;
+    private int maxStack;
+    private int nextLocal = 2; // 0 is this, 1 is env
+    private int maxLocals = 2;
+
+    private BytecodeCompiler() {}
+
+    /**
+     * Compiles a function body.
+     *
+     * @return the compiled body, or null if the body could not be compiled
+     */
+    static CompiledBody compile(Node body) {
+        try {
+            return new BytecodeCompiler().compileBody(body);
+        } catch (UnsupportedOperationException | LinkageError e) {
+            // A body the generator cannot handle, or code the JVM refuses to load, is
+            // interpreted instead
+            return null;
+        }
+    }
+
+    /**
+     * Returns the max stack size the generated code for a function body declares.
+     */
+    static int maxStack(Node body) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        compiler.generate(body);
+        return compiler.maxStack;
+    }
+
+    private void generate(Node body) {
+        body.compile(this, true);
+        emit(0xb0); // areturn
+    }
+
+    private CompiledBody compileBody(Node body) {
+        generate(body);
+
+        String className = PACKAGE + "Body" + classCounter.incrementAndGet();
+        byte[] classFile = writeClass(className);
+        try {
+            Class<?> cls = new BodyLoader().define(className.replace('/', '.'), classFile);
+            return (CompiledBody) cls.getConstructor(Object[].class).newInstance((Object) constants.toArray());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load compiled body " + className, e);
+        }
+    }
+
+    // Emitters used by Node.compile
+
+    void emitConstant(Object value) {
+        if (value == null) {
+            emit(0x01); // aconst_null
+            push(1);
+            return;
+        }
+        loadConstant(value);
+    }
+
+    void emitLocal(int depth, int slot) {
+        emit(0x2b); // aload_1
+        push(1);
+        pushInt(depth);
+        pushInt(slot);
+        invokeStatic(BASE_CLASS, "local", "(" + ENV_DESC + "II)Ljava/lang/Object;", -2);
+    }
+
+    void emitVar(Var var) {
+        loadConstant(var);
+        invokeStatic(BASE_CLASS, "deref", "(Ljava/lang/Object;)Ljava/lang/Object;", 0);
+    }
+
+    void emitDelegate(Node node, boolean tail) {
+        loadConstant(node);
+        emit(0x2b); // aload_1
+        push(1);
+        invokeStatic(BASE_CLASS, tail ? "evalTail" : "eval",
+                     "(Ljava/lang/Object;" + ENV_DESC + ")Ljava/lang/Object;", -1);
+    }
+
+    void emitDo(Node[] body, boolean tail) {
+        if (body.length == 0) {
+            emitConstant(null);
+            return;
+        }
+        for (int i = 0; i < body.length - 1; i++) {
+            body[i].compile(this, false);
+            emit(0x57); // pop
+            push(-1);
+        }
+        body[body.length - 1].compile(this, tail);
+    }
+
+    void emitCond(Node[] preds, Node[] exprs, boolean tail) {
+        int base = stack;
+        List<Integer> exits = new ArrayList<>();
+        for (int i = 0; i < preds.length; i++) {
+            preds[i].compile(this, false);
+            invokeStatic("org/toylisp/Runtime", "bool", "(Ljava/lang/Object;)Z", 0);
+            int next = branch(0x99); // ifeq
+            push(-1);
+            exprs[i].compile(this, tail);
+            exits.add(branch(0xa7)); // goto
+            stack = base;
+            patch(next);
+        }
+        emitConstant(null);
+        for (int exit : exits) {
+            patch(exit);
+        }
+    }
+
+    void emitCall(Node call, Node operator, Node[] args, boolean tail) {
+        int base = stack;
+        int func = allocLocal();
+        operator.compile(this, false);
+        emitLocalOp(0x3a, func); // astore
+        push(-1);
+
+        // A macro can be bound to the operator later on, the call node then expands it
+        emitLocalOp(0x19, func); // aload
+        push(1);
+        emitClassOp(0xc1, "org/toylisp/IMacro"); // instanceof
+        int notMacro = branch(0x99); // ifeq
+        push(-1);
+        loadConstant(call);
+        emitLocalOp(0x19, func);
+        push(1);
+        emit(0x2b); // aload_1
+        push(1);
+        pushInt(tail ? 1 : 0);
+        invokeStatic(BASE_CLASS, "macroCall",
+                     "(Ljava/lang/Object;Ljava/lang/Object;" + ENV_DESC + "Z)Ljava/lang/Object;", -3);
+        int end = branch(0xa7); // goto
+
+        stack = base;
+        patch(notMacro);
+        emitLocalOp(0x19, func);
+        push(1);
+        emitClassOp(0xc0, "org/toylisp/IFunc"); // checkcast
+        if (!tail && args.length <= MAX_FIXED_ARITY) {
+            // Use the fixed arity entry points, which need no argument array
+            StringBuilder desc = new StringBuilder("(");
+            for (Node arg : args) {
+                arg.compile(this, false);
+                desc.append("Ljava/lang/Object;");
+            }
+            desc.append(")Ljava/lang/Object;");
+            emit(0xb9); // invokeinterface
+            emitShort(pool.interfaceMethod("org/toylisp/IFunc", "invoke" + args.length, desc.toString()));
+            emit(args.length + 1);
+            emit(0);
+            push(-args.length);
+        } else {
+            pushInt(args.length);
+            emitClassOp(0xbd, OBJECT); // anewarray
+            for (int i = 0; i < args.length; i++) {
+                emit(0x59); // dup
+                push(1);
+                pushInt(i);
+                args[i].compile(this, false);
+                emit(0x53); // aastore
+                push(-3);
+            }
+            if (tail) {
+                invokeStatic(BASE_CLASS, "tailCall", "(Lorg/toylisp/IFunc;[Ljava/lang/Object;)Ljava/lang/Object;", -1);
+            } else {
+                emit(0xb9); // invokeinterface
+                emitShort(pool.interfaceMethod("org/toylisp/IFunc", "invoke", "([Ljava/lang/Object;)Ljava/lang/Object;"));
+                emit(2);
+                emit(0);
+                push(-1);
+            }
+        }
+        patch(end);
+        nextLocal--;
+    }
+
+    // Bytecode helpers
+
+    private void loadConstant(Object value) {
+        int index = constants.size();
+        constants.add(value);
+        emit(0x2a); // aload_0
+        push(1);
+        emit(0xb4); // getfield
+        emitShort(pool.field(BASE_CLASS, "constants", "[Ljava/lang/Object;"));
+        pushInt(index);
+        emit(0x32); // aaload
+        push(-1);
+    }
+
+    private void invokeStatic(String owner, String name, String desc, int stackEffect) {
+        emit(0xb8);
+        emitShort(pool.method(owner, name, desc));
+        push(stackEffect);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(0x03 + value); // iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(0x10); // bipush
+            emit(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(0x11); // sipush
+            emitShort(value);
+        } else {
+            throw new UnsupportedOperationException("Constant out of range: " + value);
+        }
+        push(1);
+    }
+
+    private void emitClassOp(int opcode, String className) {
+        emit(opcode);
+        emitShort(pool.classRef(className));
+    }
+
+    private void emitLocalOp(int opcode, int local) {
+        emit(opcode);
+        emit(local);
+    }
+
+    private int allocLocal() {
+        if (nextLocal >= MAX_LOCALS) {
+            throw new UnsupportedOperationException("Too many locals");
+        }
+        int local = nextLocal++;
+        maxLocals = Math.max(maxLocals, nextLocal);
+        return local;
+    }
+
+    private int branch(int opcode) {
+        int at = length;
+        emit(opcode);
+        emitShort(0);
+        return at;
+    }
+
+    private void patch(int branchAt) {
+        int offset = length - branchAt;
+        if (offset > MAX_BRANCH) {
+            throw new UnsupportedOperationException("Body too large");
+        }
+        code[branchAt + 1] = (byte) (offset >> 8);
+        code[branchAt + 2] = (byte) offset;
+    }
+
+    private void push(int n) {
+        stack += n;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void emit(int b) {
+        if (length == code.length) {
+            if (length > MAX_BRANCH) {
+                throw new UnsupportedOperationException("Body too large");
+            }
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = (byte) b;
+    }
+
+    private void emitShort(int s) {
+        emit(s >> 8);
+        emit(s);
+    }
+
+    private byte[] writeClass(String className) {
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef(BASE_CLASS);
+        int superInit = pool.method(BASE_CLASS, "<init>", "([Ljava/lang/Object;)V");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("([Ljava/lang/Object;)V");
+        int runName = pool.utf8("run");
+        int runDesc = pool.utf8("(" + ENV_DESC + ")Ljava/lang/Object;");
+        int codeAttr = pool.utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            pool.write(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            // public <init>(Object[] constants) { super(constants); }
+            byte[] init = {0x2a, 0x2b, (byte) 0xb7, (byte) (superInit >> 8), (byte) superInit, (byte) 0xb1};
+            writeMethod(out, initName, initDesc, codeAttr, init, init.length, 2, 2);
+            writeMethod(out, runName, runDesc, codeAttr, code, length, maxStack, maxLocals);
+
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttr,
+                                    byte[] code, int codeLength, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + codeLength);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(codeLength);
+        out.write(code, 0, codeLength);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index == null) {
+                index = add("U" + value);
+                try {
+                    out.writeByte(1);
+                    out.writeUTF(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        int classRef(String name) {
+            return ref(7, "C" + name, utf8(name), -1);
+        }
+
+        int field(String owner, String name, String desc) {
+            return ref(9, "F" + owner + "." + name + desc, classRef(owner), nameAndType(name, desc));
+        }
+
+        int method(String owner, String name, String desc) {
+            return ref(10, "M" + owner + "." + name + desc, classRef(owner), nameAndType(name, desc));
+        }
+
+        int interfaceMethod(String owner, String name, String desc) {
+            return ref(11, "I" + owner + "." + name + desc, classRef(owner), nameAndType(name, desc));
+        }
+
+        private int nameAndType(String name, String desc) {
+            return ref(12, "N" + name + desc, utf8(name), utf8(desc));
+        }
+
+        private int ref(int tag, String key, int first, int second) {
+            Integer index = entries.get(key);
+            if (index == null) {
+                index = add(key);
+                try {
+                    out.writeByte(tag);
+                    out.writeShort(first);
+                    if (second >= 0) {
+                        out.writeShort(second);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        private int add(String key) {
+            if (count >= 0xffff) {
+                throw new UnsupportedOperationException("Constant pool overflow");
+            }
+            int index = count++;
+            entries.put(key, index);
+            return index;
+        }
+
+        void write(DataOutputStream classOut) throws IOException {
+            classOut.writeShort(count);
+            bytes.writeTo(classOut);
+        }
+    }
+
+    private static final class BodyLoader extends ClassLoader {
+
+        BodyLoader() {
+            super(CompiledBody.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+}
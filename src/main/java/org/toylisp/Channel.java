@@ -0,0 +1,203 @@
+package org.toylisp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A buffered channel for passing values between concurrently running lisp code. <br/>
+ *
+ * Putting blocks while the buffer is full, taking blocks while it is empty. A closed
+ * channel accepts no more values, and taking from it returns nil once its buffer is drained.
+ * nil itself cannot be put on a channel, since it marks a closed one.
+ *
+ * @author jerry created 18/10/26
+ */
+public class Channel {
+
+    // Locks rather than monitors, a virtual thread waiting on a monitor pins its carrier
+    // thread, so thousands of blocked futures could starve the scheduler
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final Object[] buffer;
+    private int head;
+    private int count;
+    private boolean closed;
+    // Selects currently waiting for a value from this channel
+    private final List<Selector> selectors = new ArrayList<>();
+
+    public Channel(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Channel capacity must be positive: " + capacity);
+        }
+        this.buffer = new Object[capacity];
+    }
+
+    /**
+     * Puts a value on the channel, waiting for room in the buffer.
+     *
+     * @return false if the channel is closed
+     */
+    public boolean put(Object value) throws InterruptedException {
+        if (value == null) {
+            throw new IllegalArgumentException("Cannot put nil on a channel");
+        }
+        lock.lockInterruptibly();
+        try {
+            while (count == buffer.length && !closed) {
+                notFull.await();
+            }
+            if (closed) {
+                return false;
+            }
+            buffer[(head + count) % buffer.length] = value;
+            count++;
+            notEmpty.signal();
+            signalSelectors();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a value from the channel, waiting for one to arrive.
+     *
+     * @return the value, or null if the channel is closed and drained
+     */
+    public Object take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            return poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+            signalSelectors();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a value from whichever channel has one first. Only takes can be selected, a put
+     * is always made on a single channel with {@link #put(Object)}.
+     *
+     * @return a list of the value and the channel it was taken from, the value is nil if
+     * that channel is closed
+     */
+    public static Cons select(Channel[] channels) throws InterruptedException {
+        Selector selector = new Selector();
+        for (Channel channel : channels) {
+            channel.register(selector);
+        }
+        try {
+            for (; ; ) {
+                // Start at a random channel so that none of them is starved
+                int start = ThreadLocalRandom.current().nextInt(channels.length);
+                for (int i = 0; i < channels.length; i++) {
+                    Channel channel = channels[(start + i) % channels.length];
+                    channel.lock.lock();
+                    try {
+                        if (channel.count > 0 || channel.closed) {
+                            return new Cons(channel.poll(), new Cons(channel, null));
+                        }
+                    } finally {
+                        channel.lock.unlock();
+                    }
+                }
+                selector.await();
+            }
+        } finally {
+            for (Channel channel : channels) {
+                channel.unregister(selector);
+            }
+        }
+    }
+
+    // Called with the lock held
+    private Object poll() {
+        if (count == 0) {
+            return null;
+        }
+        Object value = buffer[head];
+        buffer[head] = null;
+        head = (head + 1) % buffer.length;
+        count--;
+        notFull.signal();
+        return value;
+    }
+
+    // Called with the lock held
+    private void signalSelectors() {
+        for (Selector selector : selectors) {
+            selector.signal();
+        }
+    }
+
+    private void register(Selector selector) {
+        lock.lock();
+        try {
+            selectors.add(selector);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unregister(Selector selector) {
+        lock.lock();
+        try {
+            selectors.remove(selector);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "#<channel " + Integer.toHexString(System.identityHashCode(this)) + ">";
+    }
+
+    private static final class Selector {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition signalled = lock.newCondition();
+        private boolean isSignalled;
+
+        void signal() {
+            lock.lock();
+            try {
+                isSignalled = true;
+                signalled.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void await() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (!isSignalled) {
+                    signalled.await();
+                }
+                isSignalled = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.toylisp;
+
+/**
+ * Base class of the JVM classes generated by {@link BytecodeCompiler} for hot function
+ * bodies. Generated classes are defined by their own class loader, so they cannot see the
+ * package private parts of the runtime, and go through the protected helpers here instead.
+ * <br/>
+ *
+ * This class is public for the generated code only and is not meant to be used directly.
+ *
+ * @author jerry created 18/10/26
+ */
+public abstract class CompiledBody {
+
+    protected final Object[] constants;
+
+    protected CompiledBody(Object[] constants) {this.constants = constants;}
+
+    /**
+     * Runs the body in the given lexical frame, with the same semantics as
+     * {@link Node#evalTail(Env)}.
+     */
+    public abstract Object run(Env env);
+
+    protected static Object local(Env env, int depth, int slot) {
+        return env.getLocal(depth, slot);
+    }
+
+    protected static Object deref(Object var) {
+        return ((Var) var).value;
+    }
+
+    protected static Object eval(Object node, Env env) {
+        return ((Node) node).eval(env);
+    }
+
+    protected static Object evalTail(Object node, Env env) {
+        return ((Node) node).evalTail(env);
+    }
+
+    protected static Object macroCall(Object callNode, Object macro, Env env, boolean tail) {
+        Node expansion = ((Node.Call) callNode).expand((IFunc) macro);
+        return tail ? expansion.evalTail(env) : expansion.eval(env);
+    }
+
+    protected static Object tailCall(IFunc func, Object[] args) {
+        if (func instanceof Func) {
+            return new Node.TailCall((Func) func, args);
+        }
+        return func.invoke(args);
+    }
+
+}
@@ -1,5 +1,7 @@
 package org.toylisp;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -8,10 +10,14 @@ import java.util.List;
  *
  * @author jerry created 14/11/26
  */
-public class Cons {
+public class Cons implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final Object car;
     private final Object cdr;
+    // Cached hash code, 0 if not computed yet
+    private transient int hash;
 
     public Cons(Object car, Object cdr) {
         this.car = car;
@@ -65,25 +71,60 @@ public class Cons {
         return cdr;
     }
 
+    /**
+     * Compares the elements along the spine in a loop, so long lists don't exhaust the stack.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o)
             return true;
+        if (o instanceof LazySeq)
+            return o.equals(this);
         if (o == null || getClass() != o.getClass())
             return false;
 
-        Cons cons = (Cons) o;
-
-        return !(car != null ? !car.equals(cons.car) : cons.car != null) &&
-               !(cdr != null ? !cdr.equals(cons.cdr) : cons.cdr != null);
-
+        Object tail1 = this;
+        Object tail2 = o;
+        while (tail1 instanceof Cons && tail2 instanceof Cons) {
+            if (tail1 == tail2)
+                return true;
+            Cons cons1 = (Cons) tail1;
+            Cons cons2 = (Cons) tail2;
+            // Lists with different hashes can't be equal, this only uses hashes already computed
+            if (cons1.hash != 0 && cons2.hash != 0 && cons1.hash != cons2.hash)
+                return false;
+            if (cons1.car != null ? !cons1.car.equals(cons2.car) : cons2.car != null)
+                return false;
+            tail1 = cons1.cdr;
+            tail2 = cons2.cdr;
+        }
+        return tail1 != null ? tail1.equals(tail2) : tail2 == null;
     }
 
+    /**
+     * Computed once, from the end of the list towards the head, and cached in every cons on
+     * the way, so the hash of a list or of any of its tails is then available immediately.
+     */
     @Override
     public int hashCode() {
-        int result = car != null ? car.hashCode() : 0;
-        result = 31 * result + (cdr != null ? cdr.hashCode() : 0);
-        return result;
+        int h = hash;
+        if (h != 0) {
+            return h;
+        }
+        List<Cons> uncached = new ArrayList<>();
+        Object tail = this;
+        while (tail instanceof Cons && ((Cons) tail).hash == 0) {
+            uncached.add((Cons) tail);
+            tail = ((Cons) tail).cdr;
+        }
+        h = tail != null ? tail.hashCode() : 0;
+        for (int i = uncached.size() - 1; i >= 0; i--) {
+            Cons cons = uncached.get(i);
+            h = 31 * (cons.car != null ? cons.car.hashCode() : 0) + h;
+            // Racing threads compute the same value, like String does
+            cons.hash = h;
+        }
+        return h;
     }
 
     private void appendToStr(StringBuilder buf) {
@@ -95,6 +136,13 @@ public class Cons {
                 Cons cons = (Cons) tail;
                 buf.append(cons.car());
                 tail = cons.cdr();
+            } else if (tail instanceof LazySeq) {
+                LazySeq seq = (LazySeq) tail;
+                if (seq.isEmpty()) {
+                    break;
+                }
+                buf.append(seq.first());
+                tail = seq.next();
             } else {
                 buf.append(tail.toString());
                 tail = null;
@@ -1,26 +1,80 @@
 package org.toylisp;
 
+import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Environment <br/>
  *
+ * An environment is either a hash based scope that binds symbols by name (the root scope
+ * and scopes created by {@link #push()}), or a lexical frame created by a function call.
+ * Lexical frames store their values in an array and are addressed by the (depth, slot)
+ * coordinates resolved when the function was analyzed, see {@link Scope}.
+ *
+ * A root scope may be laid over a shared root, see {@link #createOverlay(Env)}. The shared
+ * root is read only, and a var of it is copied to the overlay when it is first looked up
+ * there, so that redefining the symbol later updates the var the overlay code holds.
+ *
+ * Root scopes can be shared between threads: their bindings are held in a concurrent map
+ * and vars publish their values safely, so lookups never lock and a def made on one thread
+ * is seen by the others. Lexical frames and the scopes created by {@link #push()} belong
+ * to a single evaluation and are not synchronized.
+ *
  * @author jerry created 14/11/26
  */
-public class Env {
+public class Env implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final Env parent;
-    private final Map<Symbol, Object> bindings = new HashMap<>();
+    private final Map<Symbol, Var> bindings;
+    final Object[] slots;
+    // Whether def binds symbols in this scope
+    private final boolean root;
+    private volatile boolean shared;
 
-    private Env(Env parent) {this.parent = parent;}
+    private Env(Env parent, boolean root) {
+        this.parent = parent;
+        this.bindings = root ? new ConcurrentHashMap<Symbol, Var>() : new HashMap<Symbol, Var>();
+        this.slots = null;
+        this.root = root;
+    }
+
+    private Env(Env parent, Object[] slots) {
+        this.parent = parent;
+        this.bindings = null;
+        this.slots = slots;
+        this.root = false;
+    }
 
     public static Env createRoot() {
-        return new Env(null);
+        return new Env(null, true);
+    }
+
+    /**
+     * Creates a root scope over a shared root. Definitions go to the new scope and leave
+     * the shared one untouched.
+     */
+    static Env createOverlay(Env shared) {
+        shared.shared = true;
+        return new Env(shared, true);
     }
 
     public Env push() {
-        return new Env(this);
+        if (Metrics.enabled) {
+            Metrics.envFrames.incrementAndGet();
+        }
+        return new Env(this, false);
+    }
+
+    Env pushFrame(Object[] slots) {
+        if (Metrics.enabled) {
+            Metrics.envFrames.incrementAndGet();
+        }
+        return new Env(this, slots);
     }
 
     public Env pop() {
@@ -28,17 +82,103 @@ public class Env {
     }
 
     public Env set(Symbol name, Object val) {
-        bindings.put(name, val);
+        if (bindings == null) {
+            throw new IllegalStateException("Cannot bind symbol " + name + " in a lexical frame");
+        }
+        intern(name).value = val;
         return this;
     }
 
     public Object get(Symbol name) {
-        if (bindings.containsKey(name)) {
-            return bindings.get(name);
-        } else if (parent != null) {
-            return parent.get(name);
+        return lookupVar(name).value;
+    }
+
+    /**
+     * Returns the var for the name in this scope, creating it if needed. The caller is
+     * expected to assign the value right away.
+     */
+    Var intern(Symbol name) {
+        if (shared) {
+            throw new IllegalStateException("Cannot bind symbol " + name + " in a shared environment");
+        }
+        Var var = bindings.get(name);
+        if (var == null) {
+            var = putIfAbsent(new Var(name, null, this));
+        }
+        return var;
+    }
+
+    Collection<Var> vars() {
+        return bindings.values();
+    }
+
+    /**
+     * Binds the var itself rather than a value, so that code already holding the var
+     * sees the same cell. Used when restoring a saved image.
+     */
+    void bind(Var var) {
+        var.owner = this;
+        bindings.put(var.name, var);
+        var.name.cacheVar(var);
+    }
+
+    /**
+     * Returns the nearest root scope, which is where def binds symbols.
+     */
+    Env root() {
+        Env env = this;
+        while (!env.root) {
+            env = env.parent;
+        }
+        return env;
+    }
+
+    // Returns the var bound in this scope, which is the given one unless another thread
+    // bound the name first
+    private Var putIfAbsent(Var var) {
+        if (root) {
+            Var existing = ((ConcurrentHashMap<Symbol, Var>) bindings).putIfAbsent(var.name, var);
+            return existing != null ? existing : var;
+        }
+        Var existing = bindings.get(var.name);
+        if (existing != null) {
+            return existing;
+        }
+        bindings.put(var.name, var);
+        return var;
+    }
+
+    Var lookupVar(Symbol name) {
+        Env root = null;
+        for (Env env = this; env != null; env = env.parent) {
+            // Lexical frames have no names, their slots are read through Node.Local
+            if (env.bindings != null) {
+                if (root == null && env.root) {
+                    root = env;
+                }
+                // A root scope checks the var cached on the symbol before its map
+                Var var = env.root ? name.cachedVar(env) : null;
+                if (var == null && (var = env.bindings.get(name)) != null && env.root) {
+                    name.cacheVar(var);
+                }
+                if (var != null) {
+                    if (env.shared && root != env) {
+                        var = root.putIfAbsent(new Var(name, var.value, root));
+                        name.cacheVar(var);
+                    }
+                    return var;
+                }
+            }
         }
         throw new IllegalStateException("No value bound to symbol " + name);
     }
 
+    Object getLocal(int depth, int slot) {
+        Env env = this;
+        while (depth-- > 0) {
+            env = env.parent;
+        }
+        return env.slots[slot];
+    }
+
 }
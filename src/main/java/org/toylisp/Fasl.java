@@ -0,0 +1,390 @@
+package org.toylisp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary encoding of the forms produced by {@link Reader}, used to cache the result of
+ * reading a source file. <br/>
+ *
+ * A file starts with a header and is followed by the encoded top level forms and an end
+ * tag. Every value starts with a tag byte. A symbol is written by name the first time it occurs and by its
+ * index afterwards. Lists, vectors and maps are written as their length followed by the
+ * elements, with the keys and values of a map alternating. Counts and integers are varints.
+ *
+ * @author jerry created 18/10/26
+ */
+final class Fasl {
+
+    private static final int MAGIC = 0x544c4641;
+    private static final int VERSION = 3;
+
+    // Tags
+    private static final int NIL = 0;
+    private static final int LIST = 1;
+    private static final int SYMBOL = 2;
+    private static final int SYMBOL_REF = 3;
+    private static final int STRING = 4;
+    private static final int LONG = 5;
+    private static final int BIG_INTEGER = 6;
+    private static final int DECIMAL = 7;
+    private static final int VECTOR = 8;
+    private static final int MAP = 9;
+    private static final int END = 10;
+
+    private Fasl() {}
+
+    /**
+     * Computes the cache key of a source file, which is also the name of its cached file.
+     * It covers the format version and the encoding, since both change the decoded forms.
+     */
+    static String key(FileChannel source, String encoding) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((VERSION + ":" + encoding + ":").getBytes(StandardCharsets.UTF_8));
+        digest.update(source.map(FileChannel.MapMode.READ_ONLY, 0, source.size()));
+
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Decodes forms straight from the memory mapped file. The whole file is checked before
+     * the first form is returned, so a damaged file never yields some of its forms.
+     *
+     * @throws IllegalArgumentException if the file is not a complete compiled form file
+     */
+    static Iterator<Object> read(FileChannel input) throws IOException {
+        final ByteBuffer buf = input.map(FileChannel.MapMode.READ_ONLY, 0, input.size());
+        if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IllegalArgumentException("Not a compiled form file");
+        }
+        check(buf.duplicate());
+        return new Iterator<Object>() {
+            private final List<Symbol> symbols = new ArrayList<>();
+
+            @Override
+            public boolean hasNext() {
+                return buf.get(buf.position()) != END;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return decode(buf, symbols);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Walks the forms without building them, up to the end tag which must be the last byte
+    private static void check(ByteBuffer buf) {
+        try {
+            int symbols = 0;
+            while (buf.get(buf.position()) != END) {
+                symbols = skip(buf, symbols);
+            }
+            if (buf.remaining() != 1) {
+                throw new IllegalArgumentException("Data after the end of the forms");
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated compiled form file", e);
+        }
+    }
+
+    // Returns the number of symbols defined once the value is skipped
+    private static int skip(ByteBuffer buf, int symbols) {
+        int tag = buf.get();
+        switch (tag) {
+            case NIL:
+                return symbols;
+            case LIST:
+            case VECTOR:
+            case MAP:
+                long n = readVarLong(buf);
+                if (n < 0 || n > buf.remaining()) {
+                    throw new IllegalArgumentException("Invalid length " + n);
+                }
+                for (long i = tag == MAP ? 2 * n : n; i > 0; i--) {
+                    symbols = skip(buf, symbols);
+                }
+                return symbols;
+            case SYMBOL:
+                skipBytes(buf, 0);
+                return symbols + 1;
+            case SYMBOL_REF:
+                long index = readVarLong(buf);
+                if (index < 0 || index >= symbols) {
+                    throw new IllegalArgumentException("Invalid symbol index " + index);
+                }
+                return symbols;
+            case STRING:
+                skipBytes(buf, 0);
+                return symbols;
+            case LONG:
+                readVarLong(buf);
+                return symbols;
+            case DECIMAL:
+                readVarLong(buf);
+                // fall through for the unscaled value
+            case BIG_INTEGER:
+                skipBytes(buf, 1);
+                return symbols;
+            default:
+                throw new IllegalArgumentException("Invalid tag " + tag);
+        }
+    }
+
+    private static void skipBytes(ByteBuffer buf, int minLength) {
+        long n = readVarLong(buf);
+        if (n < minLength || n > buf.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + n);
+        }
+        buf.position(buf.position() + (int) n);
+    }
+
+    private static Object decode(ByteBuffer buf, List<Symbol> symbols) {
+        int tag = buf.get();
+        switch (tag) {
+            case NIL:
+                return null;
+            case LIST:
+                Object[] elements = decodeAll(buf, symbols, readVarInt(buf));
+                Cons list = null;
+                for (int i = elements.length - 1; i >= 0; i--) {
+                    list = new Cons(elements[i], list);
+                }
+                return list;
+            case SYMBOL:
+                Symbol symbol = Symbol.intern(readString(buf));
+                symbols.add(symbol);
+                return symbol;
+            case SYMBOL_REF:
+                return symbols.get(readVarInt(buf));
+            case STRING:
+                return readString(buf);
+            case LONG:
+                long zigzag = readVarLong(buf);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(buf));
+            case DECIMAL:
+                int scale = readVarInt(buf);
+                return new BigDecimal(new BigInteger(readBytes(buf)), (scale >>> 1) ^ -(scale & 1));
+            case VECTOR:
+                return PersistentVector.create(decodeAll(buf, symbols, readVarInt(buf)));
+            case MAP:
+                return PersistentHashMap.create(decodeAll(buf, symbols, 2 * readVarInt(buf)));
+            default:
+                throw new IllegalArgumentException("Invalid tag " + tag);
+        }
+    }
+
+    private static Object[] decodeAll(ByteBuffer buf, List<Symbol> symbols, int n) {
+        Object[] objs = new Object[n];
+        for (int i = 0; i < n; i++) {
+            objs[i] = decode(buf, symbols);
+        }
+        return objs;
+    }
+
+    private static int readVarInt(ByteBuffer buf) {
+        return (int) readVarLong(buf);
+    }
+
+    private static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[readVarInt(buf)];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        return new String(readBytes(buf), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes forms to a temporary file that replaces the target file on {@link #commit()},
+     * so that a file interrupted half way through is never used. Forms that have no
+     * encoding, which the reader does not produce, leave the target file unwritten.
+     */
+    static final class Writer implements Closeable {
+
+        private final File target;
+        private final File tmp;
+        private final DataOutputStream out;
+        private final Map<Symbol, Integer> symbols = new IdentityHashMap<>();
+        private boolean failed;
+
+        Writer(File target) throws IOException {
+            File dir = target.getAbsoluteFile().getParentFile();
+            this.target = target;
+            this.tmp = File.createTempFile(target.getName(), ".tmp", dir);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        void write(Object form) throws IOException {
+            if (!failed && !encodable(form)) {
+                failed = true;
+            }
+            if (!failed) {
+                encode(form);
+            }
+        }
+
+        void commit() throws IOException {
+            out.writeByte(END);
+            out.close();
+            if (!failed) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(tmp.toPath());
+        }
+
+        private static boolean encodable(Object obj) {
+            while (obj instanceof Cons) {
+                Cons cons = (Cons) obj;
+                if (!encodable(cons.car())) {
+                    return false;
+                }
+                obj = cons.cdr();
+                if (obj != null && !(obj instanceof Cons)) {
+                    // Only proper lists are encoded
+                    return false;
+                }
+            }
+            if (obj instanceof PersistentVector || obj instanceof PersistentHashMap) {
+                Object[] items = obj instanceof PersistentVector ? ((PersistentVector) obj).toArray()
+                                                                 : ((PersistentHashMap) obj).toArray();
+                for (Object item : items) {
+                    if (!encodable(item)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return obj == null || obj instanceof Symbol || obj instanceof String ||
+                   obj instanceof Long || obj instanceof BigInteger || obj instanceof BigDecimal;
+        }
+
+        private void encode(Object obj) throws IOException {
+            if (obj == null) {
+                out.writeByte(NIL);
+            } else if (obj instanceof Cons) {
+                int n = 0;
+                for (Object tail = obj; tail != null; tail = ((Cons) tail).cdr()) {
+                    n++;
+                }
+                out.writeByte(LIST);
+                writeVarLong(n);
+                for (Object tail = obj; tail != null; tail = ((Cons) tail).cdr()) {
+                    encode(((Cons) tail).car());
+                }
+            } else if (obj instanceof Symbol) {
+                Integer index = symbols.get(obj);
+                if (index != null) {
+                    out.writeByte(SYMBOL_REF);
+                    writeVarLong(index);
+                } else {
+                    symbols.put((Symbol) obj, symbols.size());
+                    out.writeByte(SYMBOL);
+                    writeBytes(obj.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            } else if (obj instanceof String) {
+                out.writeByte(STRING);
+                writeBytes(((String) obj).getBytes(StandardCharsets.UTF_8));
+            } else if (obj instanceof Long) {
+                long n = (Long) obj;
+                out.writeByte(LONG);
+                writeVarLong((n << 1) ^ (n >> 63));
+            } else if (obj instanceof PersistentVector) {
+                Object[] items = ((PersistentVector) obj).toArray();
+                out.writeByte(VECTOR);
+                writeVarLong(items.length);
+                for (Object item : items) {
+                    encode(item);
+                }
+            } else if (obj instanceof PersistentHashMap) {
+                Object[] keyValues = ((PersistentHashMap) obj).toArray();
+                out.writeByte(MAP);
+                writeVarLong(keyValues.length / 2);
+                for (Object item : keyValues) {
+                    encode(item);
+                }
+            } else if (obj instanceof BigInteger) {
+                out.writeByte(BIG_INTEGER);
+                writeBytes(((BigInteger) obj).toByteArray());
+            } else {
+                BigDecimal n = (BigDecimal) obj;
+                int scale = n.scale();
+                out.writeByte(DECIMAL);
+                writeVarLong(((scale << 1) ^ (scale >> 31)) & 0xffffffffL);
+                writeBytes(n.unscaledValue().toByteArray());
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package org.toylisp;
 
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
 
 import static java.util.Arrays.asList;
@@ -7,54 +9,98 @@ import static java.util.Arrays.asList;
 /**
  * Func <br/>
  *
+ * The fixed arity entry points are inherited from {@link AFunc}: the array they build is
+ * used as the lexical frame of the call, so a call still allocates only once.
+ *
  * @author jerry created 14/11/26
  */
-public class Func implements IFunc {
+public class Func extends AFunc implements Serializable {
 
-    static final Symbol AND = Symbol.intern("&");
+    private static final long serialVersionUID = 1L;
 
-    private final List<Symbol> argNames;
-    private final Symbol restArgsName;
-    private final Object body;
+    private final Scope params;
+    private final Node body;
     private final Env closureEnv;
+    // The name the function was first defined with, null for an anonymous function
+    Symbol name;
 
     public Func(List<Symbol> argNames, Object body, Env env) {
-        Symbol restArgsName = null;
-        int i = argNames.indexOf(AND);
-        if (i >= 0) {
-            // There can only be one rest arg
-            // eg. (bindings & body) is valid, (bindings & body1 body2) is not.
-            if (i != argNames.size() - 2) {
-                throw new IllegalArgumentException("Invalid rest arg declaration");
-            }
-            restArgsName = argNames.get(i + 1);
-            argNames = argNames.subList(0, i);
-        }
-        this.argNames = argNames;
-        this.restArgsName = restArgsName;
+        this(Scope.forParams(argNames, null), body, env);
+    }
+
+    private Func(Scope params, Object body, Env env) {
+        this(params, new Node.FuncBody(Runtime.analyze(body, params)), env);
+    }
+
+    Func(Scope params, Node body, Env env) {
+        this.params = params;
         this.body = body;
         this.closureEnv = env;
     }
 
+    boolean isCompiled() {
+        return ((Node.FuncBody) body).isCompiled();
+    }
+
+    /**
+     * Names the function, unless it has a name already.
+     */
+    void setName(Symbol name) {
+        if (this.name == null) {
+            this.name = name;
+        }
+    }
+
     @Override
     public Object invoke(Object... args) {
-        Env newEnv = closureEnv.push();
-        if (args.length < argNames.size()) {
+        Profiler profiler = Profiler.current();
+        Func func = this;
+        for (; ; ) {
+            if (Metrics.enabled) {
+                Metrics.functionCalls.incrementAndGet();
+            }
+            Object ret;
+            if (profiler == null) {
+                ret = func.body.evalTail(func.bindArgs(args));
+            } else {
+                profiler.enter(func);
+                try {
+                    ret = func.body.evalTail(func.bindArgs(args));
+                } finally {
+                    profiler.exit();
+                }
+            }
+            if (!(ret instanceof Node.TailCall)) {
+                return ret;
+            }
+            // Run calls made in tail position here rather than on a new Java stack frame
+            Node.TailCall call = (Node.TailCall) ret;
+            func = call.func;
+            args = call.args;
+        }
+    }
+
+    private Env bindArgs(Object[] args) {
+        int arity = params.arity;
+        if (args.length < arity) {
             throw new IllegalArgumentException("Wrong arity: " +
-                                               argNames.size() +
+                                               arity +
                                                " args expected, " +
                                                args.length +
                                                " given.");
         }
 
-        for (int i = 0; i < argNames.size(); i++) {
-            newEnv.set(argNames.get(i), args[i]);
-        }
-
-        if (restArgsName != null) {
-            newEnv.set(restArgsName, Cons.fromList(asList(args).subList(argNames.size(), args.length)));
+        Object[] slots;
+        if (params.hasRestArgs) {
+            slots = Arrays.copyOf(args, arity + 1);
+            slots[arity] = Cons.fromList(asList(args).subList(arity, args.length));
+        } else if (args.length == arity) {
+            // The varargs array is owned by this call, use it as the frame directly
+            slots = args;
+        } else {
+            slots = Arrays.copyOf(args, arity);
         }
-        return Runtime.eval(body, newEnv);
+        return closureEnv.pushFrame(slots);
     }
 
 }
@@ -1,10 +1,24 @@
 package org.toylisp;
 
 /**
+ * A function callable from lisp code. The fixed arity entry points let callers pass up to
+ * four arguments without allocating an array, implementations usually extend
+ * {@link AFunc} which routes them to {@link #invoke(Object...)} by default.
+ *
  * @author jerry created 14/11/29
  */
 public interface IFunc {
 
+    Object invoke0();
+
+    Object invoke1(Object arg1);
+
+    Object invoke2(Object arg1, Object arg2);
+
+    Object invoke3(Object arg1, Object arg2, Object arg3);
+
+    Object invoke4(Object arg1, Object arg2, Object arg3, Object arg4);
+
     Object invoke(Object... args);
 
 }
@@ -0,0 +1,219 @@
+package org.toylisp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot of the root environment, so that a launch can restore the state left by loading
+ * a library instead of evaluating its source again. <br/>
+ *
+ * An image holds the vars of the root env and everything reachable from them: symbols,
+ * closures, macros and their analyzed bodies. Builtins and the root env itself are written
+ * as references and resolved to the live objects when the image is read. Every image
+ * records a key of the source it was made from, and is ignored if the key does not match.
+ * An image is also ignored if the serialized fields of one of the runtime classes in it
+ * differ from the ones of the running build.
+ *
+ * @author jerry created 18/10/26
+ */
+final class Image {
+
+    private static final int MAGIC = 0x544c494d;
+    // Changed serialized fields are detected when reading, increase the version when the
+    // meaning of a serialized form changes while its fields stay the same
+    private static final int VERSION = 2;
+    private static final String RUNTIME_PACKAGE = "org.toylisp.";
+
+    private Image() {}
+
+    /**
+     * Computes the key identifying a version of the library source and of the image format.
+     */
+    static long sourceKey(InputStream source) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(VERSION);
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = source.read(buf)) > 0) {
+            crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Saves the root env to the file. The image is written to a temporary file first and
+     * then moved into place, so a concurrent launch never sees a partial image.
+     */
+    static void save(File file, long key) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                write(out, key);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Restores the root env from the file.
+     *
+     * @return false if there is no usable image for the key, the root env is unchanged then
+     */
+    static boolean load(File file, long key) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return read(in, key);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static void write(OutputStream output, long key) throws IOException {
+        ObjectOutputStream out = new ImageOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(key);
+        Collection<Var> vars = Runtime.getRootEnv().vars();
+        out.writeObject(vars.toArray(new Var[vars.size()]));
+        out.flush();
+    }
+
+    static boolean read(InputStream input, long key) {
+        Var[] vars;
+        try {
+            ObjectInputStream in = new ImageInputStream(input);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != key) {
+                return false;
+            }
+            vars = (Var[]) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // Damaged, or written by an incompatible build of the runtime
+            return false;
+        }
+
+        // Code in the image holds these vars, so they replace the ones in the root env
+        Env root = Runtime.getRootEnv();
+        for (Var var : vars) {
+            root.bind(var);
+        }
+        return true;
+    }
+
+    // Stands for an object that is looked up by name when the image is read
+    private static final class Ref implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        // The name of a builtin, null for the root env
+        final Symbol builtin;
+
+        Ref(Symbol builtin) {this.builtin = builtin;}
+    }
+
+    private static final class ImageOutputStream extends ObjectOutputStream {
+
+        private final Map<Object, Symbol> builtinNames = new IdentityHashMap<>();
+
+        ImageOutputStream(OutputStream out) throws IOException {
+            super(out);
+            for (Map.Entry<Symbol, IFunc> builtin : Runtime.builtins.entrySet()) {
+                builtinNames.put(builtin.getValue(), builtin.getKey());
+            }
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == Runtime.getRootEnv()) {
+                return new Ref(null);
+            }
+            Symbol builtin = builtinNames.get(obj);
+            return builtin != null ? new Ref(builtin) : obj;
+        }
+    }
+
+    private static final class ImageInputStream extends ObjectInputStream {
+
+        ImageInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof Ref) {
+                Symbol builtin = ((Ref) obj).builtin;
+                if (builtin == null) {
+                    return Runtime.getRootEnv();
+                }
+                IFunc func = Runtime.builtins.get(builtin);
+                if (func == null) {
+                    throw new InvalidObjectException("Unknown builtin " + builtin);
+                }
+                return func;
+            } else if (obj instanceof Boolean) {
+                // Keep the canonical instances, eg. for t
+                return Boolean.valueOf((Boolean) obj);
+            }
+            return obj;
+        }
+
+        // Serialization fills the fields it knows and ignores the others as long as the
+        // serialVersionUIDs match, which would restore objects of a changed class silently
+        // with wrong contents
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            if (desc.getName().startsWith(RUNTIME_PACKAGE)) {
+                ObjectStreamClass local = ObjectStreamClass.lookup(
+                    Class.forName(desc.getName(), false, Image.class.getClassLoader()));
+                if (local == null || !sameFields(desc.getFields(), local.getFields())) {
+                    throw new InvalidClassException(desc.getName(), "Serialized fields changed");
+                }
+            }
+            return desc;
+        }
+
+        // Fields are sorted the same way on both sides
+        private static boolean sameFields(ObjectStreamField[] fields, ObjectStreamField[] localFields) {
+            if (fields.length != localFields.length) {
+                return false;
+            }
+            for (int i = 0; i < fields.length; i++) {
+                ObjectStreamField field = fields[i];
+                ObjectStreamField local = localFields[i];
+                if (!field.getName().equals(local.getName()) || field.getTypeCode() != local.getTypeCode() ||
+                    !Objects.equals(field.getTypeString(), local.getTypeString())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.toylisp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+
+/**
+ * An independent lisp world for embedding. <br/>
+ *
+ * Every interpreter has its own root environment, laid over a root that has the core
+ * library loaded. The core library is loaded once per JVM and shared by all interpreters,
+ * so creating one costs a single empty scope. Definitions made by an interpreter, including
+ * redefinitions of core functions, are only seen by that interpreter.
+ *
+ * @author jerry created 18/10/26
+ */
+public class Interpreter {
+
+    private static final String CORE_LIB = "core.lisp";
+
+    private static volatile Env core;
+
+    private final Env env;
+
+    public Interpreter() {
+        this.env = Runtime.createOverlay(getCore());
+    }
+
+    public Env getEnv() {
+        return env;
+    }
+
+    public Object eval(Object form) {
+        return Runtime.eval(form, env);
+    }
+
+    /**
+     * Evaluates all forms in the source and returns the value of the last one.
+     */
+    public Object eval(String source) {
+        Object ret = null;
+        for (Object form : Reader.read(source)) {
+            ret = eval(form);
+        }
+        return ret;
+    }
+
+    /**
+     * Evaluates the forms read from the input one by one and returns the value of the
+     * last one.
+     */
+    public Object load(java.io.Reader input) {
+        return load(input, env);
+    }
+
+    private static Object load(java.io.Reader input, Env env) {
+        Object ret = null;
+        Iterator<Object> forms = Reader.stream(input);
+        while (forms.hasNext()) {
+            ret = Runtime.eval(forms.next(), env);
+        }
+        return ret;
+    }
+
+    /**
+     * Sets where (profile expr) writes its report, for all interpreters. The report is
+     * discarded while this is null, which is the default.
+     */
+    public static void setProfileOutput(Appendable out) {
+        Profiler.output = out;
+    }
+
+    private static Env getCore() {
+        Env env = core;
+        if (env == null) {
+            synchronized (Interpreter.class) {
+                env = core;
+                if (env == null) {
+                    env = Runtime.createRootEnv();
+                    loadLib(CORE_LIB, env);
+                    core = env;
+                }
+            }
+        }
+        return env;
+    }
+
+    private static void loadLib(String classpath, Env env) {
+        InputStream ins = Interpreter.class.getClassLoader().getResourceAsStream(classpath);
+        if (ins == null) {
+            throw new IllegalStateException("Unable to load library from classpath: " + classpath);
+        }
+
+        try (java.io.Reader input = new InputStreamReader(ins, "UTF-8")) {
+            load(input, env);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load library from classpath: " + classpath, e);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.toylisp;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A custom JFR event type of the runtime <br/>
+ *
+ * The sources target Java 7, so the events can't be classes extending jdk.jfr.Event. Their
+ * types are defined with jdk.jfr.EventFactory through reflection instead, when the JVM has
+ * JFR, and nothing is recorded on a JVM without it. Events are only created while metrics
+ * are enabled, see {@link Metrics}, and only if a running recording has their type enabled.
+ * Like every JFR event they record their duration, thread and stack trace.
+ *
+ * @author jerry created 18/10/26
+ */
+final class JfrEvent {
+
+    private static final Api api = Api.load();
+
+    static final JfrEvent EVAL = new JfrEvent("org.toylisp.Eval", "Lisp Eval",
+                                              "Evaluation of a top level form");
+    static final JfrEvent MACRO_EXPAND = new JfrEvent("org.toylisp.MacroExpand", "Lisp Macro Expansion",
+                                                      "Expansion of a macro call", "macro");
+    static final JfrEvent READ = new JfrEvent("org.toylisp.Read", "Lisp Read",
+                                              "Reading of a top level form");
+
+    // The jdk.jfr.EventFactory and jdk.jfr.EventType, null if the type is not defined
+    private final Object factory;
+    private final Object type;
+
+    private JfrEvent(String name, String label, String description, String... fields) {
+        Object eventFactory = null;
+        Object eventType = null;
+        if (api != null) {
+            try {
+                List<Object> annotations = Arrays.asList(
+                    api.annotationElement.newInstance(api.name, name),
+                    api.annotationElement.newInstance(api.label, label),
+                    api.annotationElement.newInstance(api.description, description),
+                    api.annotationElement.newInstance(api.category, new String[]{"Toylisp"}));
+                List<Object> values = new ArrayList<>();
+                for (String field : fields) {
+                    values.add(api.valueDescriptor.newInstance(String.class, field));
+                }
+                eventFactory = api.create.invoke(null, annotations, values);
+                eventType = api.getEventType.invoke(eventFactory);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                eventFactory = null;
+            }
+        }
+        this.factory = eventFactory;
+        this.type = eventType;
+    }
+
+    /**
+     * Creates an event of this type and starts timing it.
+     *
+     * @return the event, or null if no recording has this type enabled
+     */
+    Object begin() {
+        if (factory == null) {
+            return null;
+        }
+        try {
+            if (!(Boolean) api.isEnabled.invoke(type)) {
+                return null;
+            }
+            Object event = api.newEvent.invoke(factory);
+            api.begin.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the fields of the event in the order they were defined and commits it. Does
+     * nothing if the event is null.
+     */
+    static void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < values.length; i++) {
+                api.set.invoke(event, i, values[i]);
+            }
+            api.commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            // The event is lost, like one dropped by the recorder
+        }
+    }
+
+    // The members of jdk.jfr used to define and record events
+    private static final class Api {
+
+        final Constructor<?> annotationElement;
+        final Constructor<?> valueDescriptor;
+        final Class<?> name;
+        final Class<?> label;
+        final Class<?> description;
+        final Class<?> category;
+        final Method create;
+        final Method getEventType;
+        final Method newEvent;
+        final Method isEnabled;
+        final Method begin;
+        final Method set;
+        final Method commit;
+
+        private Api() throws ReflectiveOperationException {
+            annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+            name = Class.forName("jdk.jfr.Name");
+            label = Class.forName("jdk.jfr.Label");
+            description = Class.forName("jdk.jfr.Description");
+            category = Class.forName("jdk.jfr.Category");
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            create = factory.getMethod("create", List.class, List.class);
+            getEventType = factory.getMethod("getEventType");
+            newEvent = factory.getMethod("newEvent");
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            begin = event.getMethod("begin");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+        }
+
+        // Returns null on a JVM without JFR
+        static Api load() {
+            try {
+                return new Api();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+package org.toylisp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence whose elements are computed when they are first needed <br/>
+ *
+ * A lazy sequence is a chain of cells. A cell is realized the first time it is read, by
+ * pulling the next element from a source, such as a range or an existing list, through at
+ * most one stage like map or filter. A stage reads the cells of the sequence it is applied
+ * to, so every element of a sequence is computed once, however many sequences are derived
+ * from it and whether it is read itself or not. Reading a sequence only realizes the cells
+ * it reaches, so a sequence can be unbounded, and cells nothing refers to any more are
+ * collected, so a chain of stages is read in constant memory unless the head of one of its
+ * sequences is kept.
+ *
+ * {@link Runtime#car} and {@link Runtime#cdr} work on lazy sequences like on lists: cdr
+ * returns nil rather than an empty sequence at the end.
+ *
+ * @author jerry created 18/10/26
+ */
+public final class LazySeq {
+
+    // Returned by a puller when there are no more elements
+    private static final Object END = new Object();
+
+    private interface Puller {
+
+        Object next();
+    }
+
+    private abstract static class Source {
+
+        abstract Puller start();
+    }
+
+    private abstract static class Stage {
+
+        // Called once per sequence, so a stage can keep per sequence state
+        abstract Puller wrap(Puller upstream);
+    }
+
+    // What computes the elements, only for a sequence whose first cell is not realized yet.
+    // The stage is null for a sequence of the elements of the source.
+    private Source source;
+    private Stage stage;
+    private Puller puller;
+    private boolean realized;
+    private Object first;
+    private LazySeq rest;
+
+    private LazySeq(Source source, Stage stage) {
+        this.source = source;
+        this.stage = stage;
+    }
+
+    private LazySeq(Puller puller) {
+        this.puller = puller;
+    }
+
+    public Object first() {
+        realize();
+        return first;
+    }
+
+    /**
+     * Returns the sequence after the first element, or null if there is none. Only the
+     * element starting the returned sequence is realized, to tell whether there is one.
+     */
+    public LazySeq next() {
+        realize();
+        LazySeq next = rest;
+        return next == null || next.isEmpty() ? null : next;
+    }
+
+    public boolean isEmpty() {
+        realize();
+        return rest == null;
+    }
+
+    private synchronized void realize() {
+        if (realized) {
+            return;
+        }
+        Puller p = puller;
+        if (p == null) {
+            p = source.start();
+            if (stage != null) {
+                p = stage.wrap(p);
+            }
+            source = null;
+            stage = null;
+        }
+        Object x = p.next();
+        if (x != END) {
+            first = x;
+            rest = new LazySeq(p);
+        }
+        puller = null;
+        realized = true;
+    }
+
+    // The stage reads the cells of the sequence rather than running its source again, so
+    // sequences derived from the same one share its elements
+    private static LazySeq then(Object seq, Stage stage) {
+        return new LazySeq(new SeqSource(seq), stage);
+    }
+
+    /**
+     * A sequence of the elements of a list, vector or lazy sequence.
+     */
+    static LazySeq seq(Object coll) {
+        return new LazySeq(new SeqSource(coll), null);
+    }
+
+    static LazySeq map(final IFunc func, Object seq) {
+        return then(seq, new Stage() {
+            @Override
+            Puller wrap(final Puller upstream) {
+                return new Puller() {
+                    @Override
+                    public Object next() {
+                        Object x = upstream.next();
+                        return x == END ? END : func.invoke1(x);
+                    }
+                };
+            }
+        });
+    }
+
+    static LazySeq filter(final IFunc pred, Object seq) {
+        return then(seq, new Stage() {
+            @Override
+            Puller wrap(final Puller upstream) {
+                return new Puller() {
+                    @Override
+                    public Object next() {
+                        Object x;
+                        do {
+                            x = upstream.next();
+                        } while (x != END && !Runtime.bool(pred.invoke1(x)));
+                        return x;
+                    }
+                };
+            }
+        });
+    }
+
+    static LazySeq take(final long n, Object seq) {
+        return then(seq, new Stage() {
+            @Override
+            Puller wrap(final Puller upstream) {
+                return new Puller() {
+                    private long remaining = n;
+
+                    @Override
+                    public Object next() {
+                        // Stop without pulling, the source may be unbounded
+                        if (remaining <= 0) {
+                            return END;
+                        }
+                        remaining--;
+                        return upstream.next();
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Numbers from start by step up to end, exclusive. Unbounded if end is null.
+     */
+    static LazySeq range(final Number start, final Number end, final Number step) {
+        final boolean ascending = Numbers.compare(step, 0L) >= 0;
+        return new LazySeq(new Source() {
+            @Override
+            Puller start() {
+                return new Puller() {
+                    private Number n = start;
+
+                    @Override
+                    public Object next() {
+                        if (end != null) {
+                            int c = Numbers.compare(n, end);
+                            if (ascending ? c >= 0 : c <= 0) {
+                                return END;
+                            }
+                        }
+                        Number x = n;
+                        n = Numbers.add(n, step);
+                        return x;
+                    }
+                };
+            }
+        }, null);
+    }
+
+    /**
+     * The unbounded sequence x, (f x), (f (f x)), ...
+     */
+    static LazySeq iterate(final IFunc func, final Object x) {
+        return new LazySeq(new Source() {
+            @Override
+            Puller start() {
+                return new Puller() {
+                    private Object next = x;
+                    private boolean started;
+
+                    @Override
+                    public Object next() {
+                        if (started) {
+                            next = func.invoke1(next);
+                        }
+                        started = true;
+                        return next;
+                    }
+                };
+            }
+        }, null);
+    }
+
+    // Reads a list, vector or another lazy sequence
+    private static final class SeqSource extends Source {
+
+        private final Object seq;
+
+        SeqSource(Object seq) {this.seq = seq;}
+
+        @Override
+        Puller start() {
+            if (seq instanceof PersistentVector) {
+                final PersistentVector vector = (PersistentVector) seq;
+                return new Puller() {
+                    private int i;
+
+                    @Override
+                    public Object next() {
+                        return i < vector.count() ? vector.nth(i++) : END;
+                    }
+                };
+            }
+            return new Puller() {
+                private Object s = seq;
+
+                @Override
+                public Object next() {
+                    if (s == null) {
+                        return END;
+                    } else if (s instanceof LazySeq) {
+                        LazySeq lazy = (LazySeq) s;
+                        if (lazy.isEmpty()) {
+                            return END;
+                        }
+                        // The rest is realized when it is pulled, not before
+                        s = lazy.rest;
+                        return lazy.first;
+                    }
+                    Cons cons = (Cons) s;
+                    s = cons.cdr();
+                    return cons.car();
+                }
+            };
+        }
+    }
+
+    public List<Object> toList() {
+        List<Object> list = new ArrayList<>();
+        for (LazySeq s = isEmpty() ? null : this; s != null; s = s.next()) {
+            list.add(s.first);
+        }
+        return list;
+    }
+
+    /**
+     * A lazy sequence equals another one or a list with equal elements.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof LazySeq) && !(o instanceof Cons))
+            return false;
+
+        Object s1 = isEmpty() ? null : this;
+        Object s2 = o instanceof LazySeq && ((LazySeq) o).isEmpty() ? null : o;
+        while (s1 != null && s2 != null) {
+            Object x = Runtime.first(s1);
+            Object y = Runtime.first(s2);
+            if (x != null ? !x.equals(y) : y != null)
+                return false;
+            s1 = Runtime.rest(s1);
+            s2 = Runtime.rest(s2);
+        }
+        return s1 == null && s2 == null;
+    }
+
+    // Same as the hash code of a list with the same elements
+    @Override
+    public int hashCode() {
+        List<Object> list = toList();
+        int result = 0;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Object x = list.get(i);
+            result = 31 * (x != null ? x.hashCode() : 0) + result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(32);
+        buf.append('(');
+        for (LazySeq s = isEmpty() ? null : this; s != null; s = s.next()) {
+            if (s != this) {
+                buf.append(' ');
+            }
+            buf.append(s.first);
+        }
+        buf.append(')');
+        return buf.toString();
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.toylisp;
+
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Weak interning table for the literal constants of analyzed code <br/>
+ *
+ * When enabled, quoted lists, strings and numbers are replaced by a canonical instance, so
+ * identical literals from many files or macro expansions share one copy, and comparing two
+ * of them succeeds on identity. Lists are hash consed: a cons is interned after its car and
+ * cdr, so equal tails are shared as well. The table holds its entries weakly, a literal is
+ * dropped once no code refers to it.
+ *
+ * @author jerry created 18/10/26
+ */
+final class Literals {
+
+    static boolean enabled = Boolean.getBoolean("toylisp.intern.literals");
+
+    private static final Map<Object, WeakReference<Object>> table = new WeakHashMap<>();
+
+    private Literals() {}
+
+    /**
+     * Returns the canonical instance of a literal, or the literal itself if interning is
+     * disabled or it is not an interned type.
+     */
+    static Object constant(Object obj) {
+        return enabled ? intern(obj) : obj;
+    }
+
+    static Object intern(Object obj) {
+        if (obj instanceof Cons) {
+            return internList((Cons) obj);
+        } else if (obj instanceof String || obj instanceof Long ||
+                   obj instanceof BigInteger || obj instanceof BigDecimal) {
+            return canonical(obj);
+        }
+        // Symbols are interned already, other objects are not immutable literals
+        return obj;
+    }
+
+    // Interns the conses of the spine from the end, in a loop so long lists are fine
+    private static Object internList(Cons list) {
+        List<Cons> spine = new ArrayList<>();
+        Object tail = list;
+        while (tail instanceof Cons) {
+            spine.add((Cons) tail);
+            tail = ((Cons) tail).cdr();
+        }
+        tail = intern(tail);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            Cons cons = spine.get(i);
+            Object car = intern(cons.car());
+            if (car != cons.car() || tail != cons.cdr()) {
+                cons = new Cons(car, tail);
+            }
+            tail = canonical(cons);
+        }
+        return tail;
+    }
+
+    private static Object canonical(Object obj) {
+        synchronized (table) {
+            WeakReference<Object> ref = table.get(obj);
+            Object existing = ref != null ? ref.get() : null;
+            if (existing != null) {
+                return existing;
+            }
+            table.put(obj, new WeakReference<>(obj));
+            return obj;
+        }
+    }
+
+}
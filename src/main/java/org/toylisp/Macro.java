@@ -9,8 +9,14 @@ import java.util.List;
  */
 public class Macro extends Func implements IMacro {
 
+    private static final long serialVersionUID = 1L;
+
     public Macro(List<Symbol> argNames, Object body, Env env) {
         super(argNames, body, env);
     }
 
+    Macro(Scope params, Node body, Env env) {
+        super(params, body, env);
+    }
+
 }
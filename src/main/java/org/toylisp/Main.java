@@ -1,12 +1,16 @@
 package org.toylisp;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -18,6 +22,7 @@ public class Main {
 
     public static void runREPL() throws IOException {
         Env rootEnv = Runtime.getRootEnv();
+        Profiler.output = System.out;
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         for (; ; ) {
             System.out.print("toylisp> ");
@@ -48,47 +53,100 @@ public class Main {
     }
 
     public static void runFile(String fileName, String encoding) throws IOException {
-        String code;
-        try (FileInputStream input = new FileInputStream(fileName)) {
-            code = readCode(input, encoding);
+        String cacheDir = System.getProperty("toylisp.fasl.dir");
+        if (cacheDir != null && !cacheDir.isEmpty()) {
+            runFile(new File(fileName), encoding, new File(cacheDir));
+            return;
+        }
+        try (java.io.Reader input = new InputStreamReader(new FileInputStream(fileName), encoding)) {
+            runForms(Reader.stream(input));
         }
-        runCode(code);
     }
 
-    private static void runCode(String code) {
-        List<Object> forms = Reader.read(code);
-        for (Object form : forms) {
-            Runtime.eval(form, Runtime.getRootEnv());
+    /**
+     * Runs the file from the forms cached for its content, reading the source and caching
+     * its forms if there are none yet or the cached ones are damaged.
+     */
+    static void runFile(File file, String encoding, File cacheDir) throws IOException {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            File fasl = new File(cacheDir, Fasl.key(source, encoding) + ".fasl");
+            if (fasl.isFile()) {
+                Iterator<Object> cached;
+                try (FileChannel input = FileChannel.open(fasl.toPath(), StandardOpenOption.READ)) {
+                    cached = Fasl.read(input);
+                } catch (IllegalArgumentException e) {
+                    cached = null;
+                }
+                if (cached != null) {
+                    runForms(cached);
+                    return;
+                }
+                // Not fatal, the cache is made again from the source. The writer replaces
+                // the file anyway if it cannot be deleted.
+                fasl.delete();
+            }
+
+            source.position(0);
+            try (Fasl.Writer out = new Fasl.Writer(fasl)) {
+                Iterator<Object> forms = Reader.stream(Channels.newReader(source, encoding));
+                while (forms.hasNext()) {
+                    Object form = forms.next();
+                    out.write(form);
+                    Runtime.eval(form, Runtime.getRootEnv());
+                }
+                out.commit();
+            }
         }
     }
 
-    private static String readCode(InputStream input, String encoding) throws IOException {ByteArrayOutputStream codeBuf = new ByteArrayOutputStream(4096);
-        byte[] buf = new byte[2048];
-        int len;
-        while ((len = input.read(buf)) > 0) {
-            codeBuf.write(buf, 0, len);
+    private static void runForms(Iterator<Object> forms) {
+        while (forms.hasNext()) {
+            Runtime.eval(forms.next(), Runtime.getRootEnv());
         }
-
-        return codeBuf.toString(encoding);
     }
 
-    private static void loadLib(String classpath) throws IOException {
+    private static InputStream openLib(String classpath) {
         InputStream ins = Main.class.getClassLoader().getResourceAsStream(classpath);
         if (ins == null) {
             throw new IllegalStateException("Unable to load library from classpath: " + classpath);
         }
+        return ins;
+    }
 
-        String code;
+    private static void loadLib(String classpath) throws IOException {
+        try (java.io.Reader input = new InputStreamReader(openLib(classpath), "UTF-8")) {
+            runForms(Reader.stream(input));
+        }
+    }
+
+    /**
+     * Loads the library, restoring it from the image file instead if one was made from
+     * the same source. A missing or stale image is written after loading the source.
+     */
+    private static void loadLib(String classpath, File image) throws IOException {
+        long key;
+        try (InputStream ins = openLib(classpath)) {
+            key = Image.sourceKey(ins);
+        }
+        if (Image.load(image, key)) {
+            return;
+        }
+
+        loadLib(classpath);
         try {
-            code = readCode(ins, "UTF-8");
-        } finally {
-            ins.close();
+            Image.save(image, key);
+        } catch (IOException e) {
+            System.err.println("Unable to save image " + image + ": " + e);
         }
-        runCode(code);
     }
 
     public static void main(String[] args) throws IOException {
-        loadLib("core.lisp");
+        String image = System.getProperty("toylisp.image");
+        if (image == null || image.isEmpty()) {
+            loadLib("core.lisp");
+        } else {
+            loadLib("core.lisp", new File(image));
+        }
 
         if (args.length == 0) {
             runREPL();
@@ -0,0 +1,140 @@
+package org.toylisp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters of the work done by the runtime, published as the MBean
+ * {@value #OBJECT_NAME} <br/>
+ *
+ * Counting is enabled with toylisp.metrics, which also registers the MBean, and can then
+ * be switched off and on through it. While it is disabled the instrumented code only reads
+ * the flag. The counters are totals since the
+ * start or the last reset, monitoring tools derive rates from them. Top level forms counts
+ * the forms passed to {@link Runtime#eval(Object, Env)}, not the forms nested in them,
+ * special forms counts the special forms analyzed, and env frames counts the frames
+ * created for function calls and the scopes created by {@link Env#push()}.
+ *
+ * While counting is enabled, evaluating a top level form, expanding a macro and reading a
+ * top level form are also recorded as the JFR events org.toylisp.Eval,
+ * org.toylisp.MacroExpand and org.toylisp.Read, see {@link JfrEvent}.
+ *
+ * @author jerry created 18/10/26
+ */
+final class Metrics implements MetricsMBean {
+
+    static final String OBJECT_NAME = "org.toylisp:type=Metrics";
+
+    // Set from the JMX thread, volatile so that running code sees the change
+    static volatile boolean enabled = Boolean.getBoolean("toylisp.metrics");
+
+    static final AtomicLong topLevelForms = new AtomicLong();
+    static final AtomicLong functionCalls = new AtomicLong();
+    static final AtomicLong macroExpansions = new AtomicLong();
+    static final AtomicLong specialForms = new AtomicLong();
+    static final AtomicLong envFrames = new AtomicLong();
+    static final AtomicLong readerForms = new AtomicLong();
+    static final AtomicLong readerChars = new AtomicLong();
+    private static final AtomicLong readerNanos = new AtomicLong();
+
+    static {
+        if (enabled) {
+            register();
+        }
+    }
+
+    private Metrics() {}
+
+    /**
+     * Registers the MBean with the platform MBean server, unless it is registered already.
+     */
+    static synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new Metrics(), MetricsMBean.class), name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register " + OBJECT_NAME, e);
+        }
+    }
+
+    static void formRead(long startNanos) {
+        readerForms.incrementAndGet();
+        readerNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    @Override
+    public long getTopLevelForms() {
+        return topLevelForms.get();
+    }
+
+    @Override
+    public long getFunctionCalls() {
+        return functionCalls.get();
+    }
+
+    @Override
+    public long getMacroExpansions() {
+        return macroExpansions.get();
+    }
+
+    @Override
+    public long getSpecialForms() {
+        return specialForms.get();
+    }
+
+    @Override
+    public long getEnvFrames() {
+        return envFrames.get();
+    }
+
+    @Override
+    public long getReaderForms() {
+        return readerForms.get();
+    }
+
+    @Override
+    public long getReaderChars() {
+        return readerChars.get();
+    }
+
+    @Override
+    public double getReaderFormsPerSecond() {
+        return perSecond(readerForms.get());
+    }
+
+    @Override
+    public double getReaderCharsPerSecond() {
+        return perSecond(readerChars.get());
+    }
+
+    private static double perSecond(long count) {
+        long nanos = readerNanos.get();
+        return nanos > 0 ? count * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLong counter : new AtomicLong[]{topLevelForms, functionCalls, macroExpansions, specialForms,
+                                                   envFrames, readerForms, readerChars, readerNanos}) {
+            counter.set(0);
+        }
+    }
+
+}
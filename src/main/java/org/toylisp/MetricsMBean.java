@@ -0,0 +1,43 @@
+package org.toylisp;
+
+/**
+ * Management interface of the runtime counters, see {@link Metrics}.
+ *
+ * @author jerry created 18/10/26
+ */
+public interface MetricsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Forms passed to Runtime.eval, the forms nested in them are not counted.
+     */
+    long getTopLevelForms();
+
+    long getFunctionCalls();
+
+    long getMacroExpansions();
+
+    long getSpecialForms();
+
+    long getEnvFrames();
+
+    long getReaderForms();
+
+    long getReaderChars();
+
+    /**
+     * Forms read per second of time spent reading.
+     */
+    double getReaderFormsPerSecond();
+
+    /**
+     * Characters read per second of time spent reading.
+     */
+    double getReaderCharsPerSecond();
+
+    void reset();
+
+}
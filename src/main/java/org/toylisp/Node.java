@@ -0,0 +1,463 @@
+package org.toylisp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Node is an executable form produced by {@link Runtime#analyze(Object, Scope)}. A form is analyzed
+ * once, and the resulting tree can then be evaluated any number of times without inspecting
+ * the raw {@link Cons} structure again. <br/>
+ *
+ * @author jerry created 18/10/26
+ */
+abstract class Node implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    abstract Object eval(Env env);
+
+    /**
+     * Evaluates a node in tail position of a function body. Instead of growing the stack,
+     * a call to another Func may return a {@link TailCall} that {@link Func#invoke} runs
+     * in its own loop.
+     */
+    Object evalTail(Env env) {
+        return eval(env);
+    }
+
+    /**
+     * Emits bytecode for this node, see {@link BytecodeCompiler}. Nodes without their own
+     * translation are evaluated by the generated code through the interpreter.
+     */
+    void compile(BytecodeCompiler compiler, boolean tail) {
+        compiler.emitDelegate(this, tail);
+    }
+
+    static final class TailCall {
+
+        final Func func;
+        final Object[] args;
+
+        TailCall(Func func, Object[] args) {
+            this.func = func;
+            this.args = args;
+        }
+    }
+
+    private static Node[] analyzeAll(Cons forms, Scope scope) {
+        List<Node> nodes = new ArrayList<>();
+        while (forms != null) {
+            nodes.add(Runtime.analyze(forms.car(), scope));
+            forms = (Cons) forms.cdr();
+        }
+        return nodes.toArray(new Node[nodes.size()]);
+    }
+
+    static final class Constant extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object value;
+
+        Constant(Object value) {this.value = value;}
+
+        @Override
+        Object eval(Env env) {
+            return value;
+        }
+
+        @Override
+        void compile(BytecodeCompiler compiler, boolean tail) {
+            compiler.emitConstant(value);
+        }
+    }
+
+    static final class Ref extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Symbol name;
+        // Resolved on first use, since the symbol may not be bound yet when analyzed
+        private volatile Var var;
+
+        Ref(Symbol name) {this.name = name;}
+
+        @Override
+        Object eval(Env env) {
+            Var v = var;
+            if (v == null) {
+                var = v = env.lookupVar(name);
+            }
+            return v.value;
+        }
+
+        @Override
+        void compile(BytecodeCompiler compiler, boolean tail) {
+            Var v = var;
+            if (v != null) {
+                compiler.emitVar(v);
+            } else {
+                compiler.emitDelegate(this, tail);
+            }
+        }
+    }
+
+    static final class Local extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int depth;
+        private final int slot;
+
+        Local(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object eval(Env env) {
+            return env.getLocal(depth, slot);
+        }
+
+        @Override
+        void compile(BytecodeCompiler compiler, boolean tail) {
+            compiler.emitLocal(depth, slot);
+        }
+    }
+
+    static final class Call extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node operator;
+        private final Cons params;
+        private final Scope scope;
+        // Arguments are analyzed on the first function call, since the same form could
+        // turn out to be a macro call whose arguments are not valid code on their own.
+        private volatile Node[] args;
+        private volatile Expansion expansion;
+
+        Call(Node operator, Cons params, Scope scope) {
+            this.operator = operator;
+            this.params = params;
+            this.scope = scope;
+        }
+
+        @Override
+        Object eval(Env env) {
+            IFunc func = (IFunc) operator.eval(env);
+            if (func instanceof IMacro) {
+                return expand(func).eval(env);
+            }
+            return invoke(func, env);
+        }
+
+        @Override
+        Object evalTail(Env env) {
+            IFunc func = (IFunc) operator.eval(env);
+            if (func instanceof IMacro) {
+                return expand(func).evalTail(env);
+            }
+            if (func instanceof Func) {
+                return new TailCall((Func) func, evalArgs(env));
+            }
+            return invoke(func, env);
+        }
+
+        private Object invoke(IFunc func, Env env) {
+            Node[] args = analyzeArgs();
+            switch (args.length) {
+                case 0:
+                    return func.invoke0();
+                case 1:
+                    return func.invoke1(args[0].eval(env));
+                case 2:
+                    return func.invoke2(args[0].eval(env), args[1].eval(env));
+                case 3:
+                    return func.invoke3(args[0].eval(env), args[1].eval(env), args[2].eval(env));
+                case 4:
+                    return func.invoke4(args[0].eval(env), args[1].eval(env), args[2].eval(env),
+                                        args[3].eval(env));
+                default:
+                    return func.invoke(evalArgs(env));
+            }
+        }
+
+        /**
+         * Expands the macro call once per call site. The expansion is kept until the operator
+         * evaluates to a different macro, which is what redefining it with defmacro does.
+         */
+        Node expand(IFunc macro) {
+            Expansion exp = expansion;
+            if (exp == null || exp.macro != macro) {
+                exp = new Expansion(macro, Runtime.analyze(Runtime.macroExpand(macro, params), scope));
+                expansion = exp;
+            }
+            return exp.node;
+        }
+
+        @Override
+        void compile(BytecodeCompiler compiler, boolean tail) {
+            // Only call sites that have run as plain function calls are compiled
+            if (args != null && expansion == null) {
+                compiler.emitCall(this, operator, args, tail);
+            } else {
+                compiler.emitDelegate(this, tail);
+            }
+        }
+
+        private Node[] analyzeArgs() {
+            Node[] nodes = args;
+            if (nodes == null) {
+                // Threads racing here analyze the same forms, any of the results will do
+                args = nodes = analyzeAll(params, scope);
+            }
+            return nodes;
+        }
+
+        private Object[] evalArgs(Env env) {
+            Node[] args = analyzeArgs();
+            Object[] argValues = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argValues[i] = args[i].eval(env);
+            }
+            return argValues;
+        }
+    }
+
+    static final class Expansion implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final IFunc macro;
+        final Node node;
+
+        Expansion(IFunc macro, Node node) {
+            this.macro = macro;
+            this.node = node;
+        }
+    }
+
+    static final class VectorLiteral extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node[] items;
+
+        VectorLiteral(Node[] items) {this.items = items;}
+
+        @Override
+        Object eval(Env env) {
+            PersistentVector vector = PersistentVector.EMPTY;
+            for (Node item : items) {
+                vector = vector.conj(item.eval(env));
+            }
+            return vector;
+        }
+    }
+
+    static final class MapLiteral extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        // Alternating keys and values
+        private final Node[] keyValues;
+
+        MapLiteral(Node[] keyValues) {this.keyValues = keyValues;}
+
+        @Override
+        Object eval(Env env) {
+            PersistentHashMap map = PersistentHashMap.EMPTY;
+            for (int i = 0; i < keyValues.length; i += 2) {
+                map = map.assoc(keyValues[i].eval(env), keyValues[i + 1].eval(env));
+            }
+            return map;
+        }
+    }
+
+    static final class Cond extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node[] preds;
+        private final Node[] exprs;
+
+        Cond(Node[] preds, Node[] exprs) {
+            this.preds = preds;
+            this.exprs = exprs;
+        }
+
+        @Override
+        Object eval(Env env) {
+            for (int i = 0; i < preds.length; i++) {
+                if (Runtime.bool(preds[i].eval(env))) {
+                    return exprs[i].eval(env);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Object evalTail(Env env) {
+            for (int i = 0; i < preds.length; i++) {
+                if (Runtime.bool(preds[i].eval(env))) {
+                    return exprs[i].evalTail(env);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void compile(BytecodeCompiler compiler, boolean tail) {
+            compiler.emitCond(preds, exprs, tail);
+        }
+    }
+
+    static final class Do extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node[] body;
+
+        Do(Cons forms, Scope scope) {this.body = analyzeAll(forms, scope);}
+
+        @Override
+        Object eval(Env env) {
+            Object ret = null;
+            for (Node node : body) {
+                ret = node.eval(env);
+            }
+            return ret;
+        }
+
+        @Override
+        Object evalTail(Env env) {
+            int last = body.length - 1;
+            for (int i = 0; i < last; i++) {
+                body[i].eval(env);
+            }
+            return last >= 0 ? body[last].evalTail(env) : null;
+        }
+
+        @Override
+        void compile(BytecodeCompiler compiler, boolean tail) {
+            compiler.emitDo(body, tail);
+        }
+    }
+
+    /**
+     * The body of a lambda. It counts how often it runs, and once it is hot it compiles the
+     * body to bytecode and runs that instead.
+     */
+    static final class FuncBody extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        static int compileThreshold = Integer.getInteger("toylisp.compile.threshold", 1000);
+
+        private final Node source;
+        // Generated code is not part of a saved image, a restored body warms up again
+        private transient volatile CompiledBody compiled;
+        private transient volatile boolean compileTried;
+        // Not synchronized, an increment lost to a race only delays the compilation
+        private transient int invocations;
+
+        FuncBody(Node source) {this.source = source;}
+
+        @Override
+        Object eval(Env env) {
+            return source.eval(env);
+        }
+
+        @Override
+        Object evalTail(Env env) {
+            CompiledBody code = compiled;
+            if (code != null) {
+                return code.run(env);
+            }
+            // A threshold of 0 disables compilation
+            if (++invocations >= compileThreshold && compileThreshold > 0 && !compileTried) {
+                compile();
+            }
+            return source.evalTail(env);
+        }
+
+        // Compiles the body once, a body that failed to compile stays interpreted
+        private synchronized void compile() {
+            if (!compileTried) {
+                compiled = BytecodeCompiler.compile(source);
+                compileTried = true;
+            }
+        }
+
+        boolean isCompiled() {
+            return compiled != null;
+        }
+    }
+
+    static final class Def extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Symbol name;
+        private final Node value;
+
+        Def(Symbol name, Node value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Env env) {
+            Object obj = value.eval(env);
+            if (obj instanceof Func) {
+                ((Func) obj).setName(name);
+            }
+            env.root().intern(name).value = obj;
+            return obj;
+        }
+    }
+
+    static final class Lambda extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Scope params;
+        private final Node body;
+
+        Lambda(Scope params, Node body) {
+            this.params = params;
+            this.body = body;
+        }
+
+        @Override
+        Object eval(Env env) {
+            return new Func(params, body, env);
+        }
+    }
+
+    static final class DefMacro extends Node {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Symbol name;
+        private final Scope params;
+        private final Node body;
+
+        DefMacro(Symbol name, Scope params, Node body) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+        }
+
+        @Override
+        Object eval(Env env) {
+            Macro macro = new Macro(params, body, env);
+            macro.setName(name);
+            env.root().set(name, macro);
+            return macro;
+        }
+    }
+
+}
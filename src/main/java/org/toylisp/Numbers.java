@@ -0,0 +1,191 @@
+package org.toylisp;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Numeric tower used by the arithmetic builtins <br/>
+ *
+ * Integers are {@link Long}s as long as they fit and are promoted to {@link BigInteger} on
+ * overflow; results that fit into a long again are demoted. Decimals are
+ * {@link BigDecimal}s, and an operation with a decimal operand yields a decimal.
+ *
+ * @author jerry created 18/10/26
+ */
+final class Numbers {
+
+    private static final int LONG = 0;
+    private static final int BIG_INTEGER = 1;
+    private static final int DECIMAL = 2;
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private Numbers() {}
+
+    /**
+     * Parses a numeric literal as read by {@link Reader}.
+     */
+    static Number parse(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                return new BigDecimal(literal);
+            }
+        }
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            return new BigInteger(literal);
+        }
+    }
+
+    static Number add(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            long r = a + b;
+            if (((a ^ r) & (b ^ r)) >= 0) {
+                return r;
+            }
+        }
+        switch (category(x, y)) {
+            case DECIMAL:
+                return toDecimal(x).add(toDecimal(y));
+            default:
+                return normalize(toBigInteger(x).add(toBigInteger(y)));
+        }
+    }
+
+    static Number subtract(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            long r = a - b;
+            if (((a ^ b) & (a ^ r)) >= 0) {
+                return r;
+            }
+        }
+        switch (category(x, y)) {
+            case DECIMAL:
+                return toDecimal(x).subtract(toDecimal(y));
+            default:
+                return normalize(toBigInteger(x).subtract(toBigInteger(y)));
+        }
+    }
+
+    static Number multiply(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            long r = a * b;
+            // Same overflow check as Math.multiplyExact
+            if ((((Math.abs(a) | Math.abs(b)) >>> 31) == 0) ||
+                ((b == 0 || r / b == a) && (a != Long.MIN_VALUE || b != -1))) {
+                return r;
+            }
+        }
+        switch (category(x, y)) {
+            case DECIMAL:
+                return toDecimal(x).multiply(toDecimal(y));
+            default:
+                return normalize(toBigInteger(x).multiply(toBigInteger(y)));
+        }
+    }
+
+    /**
+     * Integral division, truncating towards zero.
+     */
+    static Number divide(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = (Long) x;
+            long b = (Long) y;
+            if (b == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            if (a != Long.MIN_VALUE || b != -1) {
+                return a / b;
+            }
+        }
+        switch (category(x, y)) {
+            case DECIMAL:
+                return toDecimal(x).divideToIntegralValue(toDecimal(y));
+            default:
+                return normalize(toBigInteger(x).divide(toBigInteger(y)));
+        }
+    }
+
+    /**
+     * Numeric equality across representations, eg. 2 equals 2.0.
+     */
+    static boolean equiv(Number x, Number y) {
+        if (x instanceof Long && y instanceof Long) {
+            return x.longValue() == y.longValue();
+        }
+        switch (category(x, y)) {
+            case DECIMAL:
+                return toDecimal(x).compareTo(toDecimal(y)) == 0;
+            case BIG_INTEGER:
+                return toBigInteger(x).equals(toBigInteger(y));
+            default:
+                return x.longValue() == y.longValue();
+        }
+    }
+
+    static int compare(Number x, Number y) {
+        if (x instanceof Long && y instanceof Long) {
+            long a = x.longValue();
+            long b = y.longValue();
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+        switch (category(x, y)) {
+            case DECIMAL:
+                return toDecimal(x).compareTo(toDecimal(y));
+            case BIG_INTEGER:
+                return toBigInteger(x).compareTo(toBigInteger(y));
+            default:
+                return Long.compare(x.longValue(), y.longValue());
+        }
+    }
+
+    private static int category(Object x, Object y) {
+        return Math.max(category(x), category(y));
+    }
+
+    private static int category(Object n) {
+        if (n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte) {
+            return LONG;
+        } else if (n instanceof BigInteger) {
+            return BIG_INTEGER;
+        } else if (n instanceof Number) {
+            return DECIMAL;
+        }
+        throw new IllegalArgumentException("Not a number: " + n);
+    }
+
+    private static Number normalize(BigInteger n) {
+        if (n.compareTo(LONG_MIN) >= 0 && n.compareTo(LONG_MAX) <= 0) {
+            return n.longValue();
+        }
+        return n;
+    }
+
+    private static BigInteger toBigInteger(Object n) {
+        if (n instanceof BigInteger) {
+            return (BigInteger) n;
+        }
+        return BigInteger.valueOf(((Number) n).longValue());
+    }
+
+    private static BigDecimal toDecimal(Object n) {
+        if (n instanceof BigDecimal) {
+            return (BigDecimal) n;
+        } else if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger) n);
+        } else if (n instanceof Double || n instanceof Float) {
+            return BigDecimal.valueOf(((Number) n).doubleValue());
+        }
+        return BigDecimal.valueOf(((Number) n).longValue());
+    }
+
+}
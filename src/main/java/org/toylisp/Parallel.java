@@ -0,0 +1,170 @@
+package org.toylisp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Data parallel operations over lists, run on a fork/join pool. <br/>
+ *
+ * The list is copied into an array, which is split in halves until a range has at most
+ * {@link #threshold} elements. Lists no longer than the threshold are processed on the
+ * calling thread.
+ *
+ * @author jerry created 18/10/26
+ */
+// Fork/join tasks are serializable but never serialized
+@SuppressWarnings("serial")
+final class Parallel {
+
+    static int threshold = Integer.getInteger("toylisp.parallel.threshold", 1024);
+
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    private Parallel() {}
+
+    static Cons map(final IFunc func, Object list) {
+        final Object[] items = toArray(list);
+        final Object[] results = new Object[items.length];
+        run(new Range(0, items.length) {
+            @Override
+            void compute(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    results[i] = func.invoke1(items[i]);
+                }
+            }
+        });
+        return fromArray(results, null);
+    }
+
+    static Cons filter(final IFunc pred, Object list) {
+        final Object[] items = toArray(list);
+        final boolean[] keep = new boolean[items.length];
+        run(new Range(0, items.length) {
+            @Override
+            void compute(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    keep[i] = Runtime.bool(pred.invoke1(items[i]));
+                }
+            }
+        });
+        return fromArray(items, keep);
+    }
+
+    /**
+     * Reduces the list with an associative function, for which init is the identity: every
+     * range is reduced starting from init, and the results of the ranges are combined with
+     * the same function.
+     */
+    static Object reduce(IFunc func, Object init, Object list) {
+        Object[] items = toArray(list);
+        if (items.length <= threshold) {
+            return reduce(func, init, items, 0, items.length);
+        }
+        return pool.invoke(new Reduce(func, init, items, 0, items.length));
+    }
+
+    private static Object reduce(IFunc func, Object acc, Object[] items, int from, int to) {
+        for (int i = from; i < to; i++) {
+            acc = func.invoke2(acc, items[i]);
+        }
+        return acc;
+    }
+
+    private static void run(Range range) {
+        if (range.to - range.from <= threshold) {
+            range.compute(range.from, range.to);
+        } else {
+            pool.invoke(range);
+        }
+    }
+
+    // Accepts a list or a lazy sequence
+    private static Object[] toArray(Object list) {
+        List<Object> items = new ArrayList<>();
+        while (Runtime.hasItems(list)) {
+            items.add(Runtime.first(list));
+            list = Runtime.rest(list);
+        }
+        return items.toArray();
+    }
+
+    private static Cons fromArray(Object[] items, boolean[] keep) {
+        Cons list = null;
+        for (int i = items.length - 1; i >= 0; i--) {
+            if (keep == null || keep[i]) {
+                list = new Cons(items[i], list);
+            }
+        }
+        return list;
+    }
+
+    // A range of indices processed element by element
+    private abstract static class Range extends RecursiveAction {
+
+        final int from;
+        final int to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract void compute(int from, int to);
+
+        @Override
+        protected void compute() {
+            split(from, to);
+        }
+
+        private void split(final int from, final int to) {
+            if (to - from <= threshold) {
+                compute(from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            final Range outer = this;
+            RecursiveAction right = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    outer.split(mid, to);
+                }
+            };
+            right.fork();
+            split(from, mid);
+            right.join();
+        }
+    }
+
+    private static final class Reduce extends RecursiveTask<Object> {
+
+        private final IFunc func;
+        private final Object init;
+        private final Object[] items;
+        private final int from;
+        private final int to;
+
+        Reduce(IFunc func, Object init, Object[] items, int from, int to) {
+            this.func = func;
+            this.init = init;
+            this.items = items;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from <= threshold) {
+                return reduce(func, init, items, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            Reduce right = new Reduce(func, init, items, mid, to);
+            right.fork();
+            Object left = new Reduce(func, init, items, from, mid).compute();
+            return func.invoke2(left, right.join());
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package org.toylisp;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable hash map with structural sharing <br/>
+ *
+ * Implemented as a hash array mapped trie: every level of the trie consumes 5 bits of the
+ * key's hash, and a node only stores the entries present in a bitmap, so lookups and updates
+ * take O(log32 n) and an update copies only the path to the changed entry. Keys with equal
+ * hashes share a collision node. nil is allowed as a key and is kept outside the trie.
+ *
+ * @author jerry created 18/10/26
+ */
+public final class PersistentHashMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final PersistentHashMap EMPTY = new PersistentHashMap(0, null, false, null);
+
+    private static final Object NOT_FOUND = new Object();
+
+    private final int count;
+    private final Node root;
+    private final boolean hasNull;
+    private final Object nullValue;
+
+    private PersistentHashMap(int count, Node root, boolean hasNull, Object nullValue) {
+        this.count = count;
+        this.root = root;
+        this.hasNull = hasNull;
+        this.nullValue = nullValue;
+    }
+
+    /**
+     * Creates a map from alternating keys and values, later keys replace earlier ones.
+     */
+    public static PersistentHashMap create(Object... keyValues) {
+        if (keyValues.length % 2 != 0) {
+            throw new IllegalArgumentException("No value supplied for key " + keyValues[keyValues.length - 1]);
+        }
+        PersistentHashMap map = EMPTY;
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map = map.assoc(keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key, NOT_FOUND) != NOT_FOUND;
+    }
+
+    public Object get(Object key, Object notFound) {
+        if (key == null) {
+            return hasNull ? nullValue : notFound;
+        }
+        return root != null ? root.find(0, hash(key), key, notFound) : notFound;
+    }
+
+    public PersistentHashMap assoc(Object key, Object val) {
+        if (key == null) {
+            if (hasNull && val == nullValue) {
+                return this;
+            }
+            return new PersistentHashMap(hasNull ? count : count + 1, root, true, val);
+        }
+        boolean[] added = new boolean[1];
+        Node newRoot = (root != null ? root : BitmapNode.EMPTY).assoc(0, hash(key), key, val, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap(added[0] ? count + 1 : count, newRoot, hasNull, nullValue);
+    }
+
+    /**
+     * Returns the entries as alternating keys and values.
+     */
+    public Object[] toArray() {
+        List<Object> keyValues = new ArrayList<>(count * 2);
+        if (hasNull) {
+            keyValues.add(null);
+            keyValues.add(nullValue);
+        }
+        if (root != null) {
+            root.collect(keyValues);
+        }
+        return keyValues.toArray();
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    private interface Node extends Serializable {
+
+        Node assoc(int shift, int hash, Object key, Object val, boolean[] added);
+
+        Object find(int shift, int hash, Object key, Object notFound);
+
+        void collect(List<Object> keyValues);
+    }
+
+    /**
+     * Holds the entries and sub nodes for the hash fragments set in the bitmap. The array
+     * has a key and a value for every entry, and null and the node for every sub node.
+     */
+    private static final class BitmapNode implements Node {
+
+        private static final long serialVersionUID = 1L;
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Node assoc(int shift, int hash, Object key, Object val, boolean[] added) {
+            int bit = bit(hash, shift);
+            int idx = 2 * index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, idx);
+                newArray[idx] = key;
+                newArray[idx + 1] = val;
+                System.arraycopy(array, idx, newArray, idx + 2, array.length - idx);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            Object keyOrNull = array[idx];
+            Object valOrNode = array[idx + 1];
+            if (keyOrNull == null) {
+                Node node = ((Node) valOrNode).assoc(shift + 5, hash, key, val, added);
+                return node == valOrNode ? this : with(idx + 1, node);
+            }
+            if (key.equals(keyOrNull)) {
+                return val == valOrNode ? this : with(idx + 1, val);
+            }
+            added[0] = true;
+            Object[] newArray = array.clone();
+            newArray[idx] = null;
+            newArray[idx + 1] = createNode(shift + 5, keyOrNull, valOrNode, hash, key, val);
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private BitmapNode with(int i, Object obj) {
+            Object[] newArray = array.clone();
+            newArray[i] = obj;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key, Object notFound) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return notFound;
+            }
+            int idx = 2 * index(bit);
+            Object keyOrNull = array[idx];
+            Object valOrNode = array[idx + 1];
+            if (keyOrNull == null) {
+                return ((Node) valOrNode).find(shift + 5, hash, key, notFound);
+            }
+            return key.equals(keyOrNull) ? valOrNode : notFound;
+        }
+
+        @Override
+        public void collect(List<Object> keyValues) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).collect(keyValues);
+                } else {
+                    keyValues.add(array[i]);
+                    keyValues.add(array[i + 1]);
+                }
+            }
+        }
+
+        private static Node createNode(int shift, Object key1, Object val1, int hash2, Object key2, Object val2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{key1, val1, key2, val2});
+            }
+            boolean[] added = new boolean[1];
+            return EMPTY.assoc(shift, hash1, key1, val1, added)
+                        .assoc(shift, hash2, key2, val2, added);
+        }
+    }
+
+    // Entries whose keys have the same hash
+    private static final class CollisionNode implements Node {
+
+        private static final long serialVersionUID = 1L;
+
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Node assoc(int shift, int hash, Object key, Object val, boolean[] added) {
+            if (hash != this.hash) {
+                // Push this node one level down, next to the new key
+                return new BitmapNode(bit(this.hash, shift), new Object[]{null, this})
+                    .assoc(shift, hash, key, val, added);
+            }
+            int idx = indexOf(key);
+            if (idx >= 0) {
+                if (array[idx + 1] == val) {
+                    return this;
+                }
+                Object[] newArray = array.clone();
+                newArray[idx + 1] = val;
+                return new CollisionNode(hash, newArray);
+            }
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = val;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key, Object notFound) {
+            int idx = indexOf(key);
+            return idx >= 0 ? array[idx + 1] : notFound;
+        }
+
+        @Override
+        public void collect(List<Object> keyValues) {
+            keyValues.addAll(Arrays.asList(array));
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PersistentHashMap))
+            return false;
+
+        PersistentHashMap that = (PersistentHashMap) o;
+        if (count != that.count)
+            return false;
+        Object[] keyValues = toArray();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            Object val = that.get(keyValues[i], NOT_FOUND);
+            if (keyValues[i + 1] != null ? !keyValues[i + 1].equals(val) : val != null)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 0;
+        Object[] keyValues = toArray();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            Object key = keyValues[i];
+            Object val = keyValues[i + 1];
+            result += (key != null ? key.hashCode() : 0) ^ (val != null ? val.hashCode() : 0);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(32);
+        buf.append('{');
+        Object[] keyValues = toArray();
+        for (int i = 0; i < keyValues.length; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+            buf.append(keyValues[i]);
+        }
+        buf.append('}');
+        return buf.toString();
+    }
+
+    // The trie depends on the hash codes of the keys, which may differ in another JVM, so
+    // a map is serialized as its entries and rebuilt when read
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(toArray());
+    }
+
+    private static final class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object[] keyValues;
+
+        SerializedForm(Object[] keyValues) {this.keyValues = keyValues;}
+
+        private Object readResolve() throws ObjectStreamException {
+            return create(keyValues);
+        }
+    }
+
+}
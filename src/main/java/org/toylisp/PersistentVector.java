@@ -0,0 +1,203 @@
+package org.toylisp;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable vector with structural sharing <br/>
+ *
+ * Elements are stored in a trie of 32 wide nodes, so indexing and updating take
+ * O(log32 n) and an update copies only the path to the changed element. The last (up to 32)
+ * elements are kept in a separate tail array, which makes appending mostly a copy of the tail.
+ *
+ * @author jerry created 18/10/26
+ */
+public final class PersistentVector implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final Object[] EMPTY_NODE = new Object[WIDTH];
+
+    public static final PersistentVector EMPTY = new PersistentVector(0, BITS, EMPTY_NODE, new Object[0]);
+
+    private final int count;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int count, int shift, Object[] root, Object[] tail) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    public static PersistentVector create(Object... items) {
+        PersistentVector vector = EMPTY;
+        for (Object item : items) {
+            vector = vector.conj(item);
+        }
+        return vector;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public Object nth(int i) {
+        return arrayFor(i)[i & MASK];
+    }
+
+    /**
+     * Returns a vector with the value appended.
+     */
+    public PersistentVector conj(Object val) {
+        if (count - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = val;
+            return new PersistentVector(count + 1, shift, root, newTail);
+        }
+
+        // The tail is full, push it into the trie
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1 << shift)) {
+            // The trie is full as well, add a level
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector(count + 1, newShift, newRoot, new Object[]{val});
+    }
+
+    /**
+     * Returns a vector with the element at i replaced, or appended if i is the count.
+     */
+    public PersistentVector assocN(int i, Object val) {
+        if (i == count) {
+            return conj(val);
+        }
+        checkIndex(i);
+        if (i >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[i & MASK] = val;
+            return new PersistentVector(count, shift, root, newTail);
+        }
+        return new PersistentVector(count, shift, doAssoc(shift, root, i, val), tail);
+    }
+
+    public Object[] toArray() {
+        Object[] items = new Object[count];
+        for (int i = 0; i < count; i += WIDTH) {
+            Object[] node = arrayFor(i);
+            System.arraycopy(node, 0, items, i, Math.min(WIDTH, count - i));
+        }
+        return items;
+    }
+
+    private int tailOffset() {
+        return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for vector of " + count);
+        }
+    }
+
+    private Object[] arrayFor(int i) {
+        checkIndex(i);
+        if (i >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(i >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int subIndex = ((count - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        if (level == BITS) {
+            node[subIndex] = tailNode;
+        } else {
+            Object[] child = (Object[]) parent[subIndex];
+            node[subIndex] = child != null ? pushTail(level - BITS, child, tailNode)
+                                           : newPath(level - BITS, tailNode);
+        }
+        return node;
+    }
+
+    private static Object[] newPath(int level, Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+        Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+
+    private static Object[] doAssoc(int level, Object[] node, int i, Object val) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[i & MASK] = val;
+        } else {
+            int subIndex = (i >>> level) & MASK;
+            copy[subIndex] = doAssoc(level - BITS, (Object[]) node[subIndex], i, val);
+        }
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PersistentVector))
+            return false;
+
+        PersistentVector that = (PersistentVector) o;
+        if (count != that.count)
+            return false;
+        for (int i = 0; i < count; i++) {
+            Object x = nth(i);
+            Object y = that.nth(i);
+            if (x != null ? !x.equals(y) : y != null)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < count; i++) {
+            Object x = nth(i);
+            result = 31 * result + (x != null ? x.hashCode() : 0);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(32);
+        buf.append('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+            buf.append(nth(i));
+        }
+        buf.append(']');
+        return buf.toString();
+    }
+
+}
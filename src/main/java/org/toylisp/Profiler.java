@@ -0,0 +1,266 @@
+package org.toylisp;
+
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the calls of lisp functions made on a thread <br/>
+ *
+ * While a profile is recorded, every call of a {@link Func}, including the expansion of a
+ * macro, is attributed to the name the function was defined with, or to lambda for an
+ * anonymous one. Calls are kept in a calling context tree: a node per distinct stack of
+ * names, holding the number of calls and the time spent and bytes allocated in the function
+ * itself and in its callees. A call in tail position replaces the frame of its caller, like
+ * it does when running.
+ *
+ * Only the thread that started the profile is recorded, calls made by futures or the
+ * parallel builtins are not.
+ *
+ * @author jerry created 18/10/26
+ */
+final class Profiler {
+
+    private static final Symbol LAMBDA = Symbol.intern("lambda");
+
+    // Number of threads recording a profile. Calls read it before looking up the profiler
+    // of their thread, so they are not slowed down while nothing is profiled.
+    private static final AtomicInteger active = new AtomicInteger();
+
+    private static final ThreadLocal<Profiler> current = new ThreadLocal<>();
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // Where (profile expr) writes its report, null to discard it. Only the REPL sets it
+    // to standard output.
+    static volatile Appendable output;
+
+    private final Frame root = new Frame(null, Symbol.intern("profile"));
+    private final boolean countBytes;
+    private Frame top = root;
+
+    private Profiler() {
+        countBytes = threads instanceof com.sun.management.ThreadMXBean &&
+                     ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Calls the function while recording a profile, then writes the report to
+     * {@link #output} and, if a file name is given, the collapsed stacks to the file.
+     */
+    static Object profile(IFunc func, String collapsedFile) {
+        Profiler profiler = start();
+        Object ret;
+        try {
+            ret = func.invoke0();
+        } finally {
+            profiler.stop();
+        }
+        try {
+            Appendable out = output;
+            if (out != null) {
+                profiler.report(out);
+                if (out instanceof Flushable) {
+                    ((Flushable) out).flush();
+                }
+            }
+            if (collapsedFile != null) {
+                try (Writer stacks = new OutputStreamWriter(new FileOutputStream(collapsedFile), "UTF-8")) {
+                    profiler.writeCollapsed(stacks);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write profile: " + e.getMessage(), e);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the profiler recording calls on this thread, or null.
+     */
+    static Profiler current() {
+        return active.get() > 0 ? current.get() : null;
+    }
+
+    static Profiler start() {
+        if (current.get() != null) {
+            throw new IllegalStateException("A profile is already recorded on this thread");
+        }
+        Profiler profiler = new Profiler();
+        current.set(profiler);
+        active.incrementAndGet();
+        profiler.root.start(profiler.allocatedBytes());
+        return profiler;
+    }
+
+    void stop() {
+        root.stop(allocatedBytes());
+        current.remove();
+        active.decrementAndGet();
+    }
+
+    void enter(Func func) {
+        Symbol name = func.name;
+        Frame frame = top.child(name != null ? name : LAMBDA);
+        frame.calls++;
+        frame.start(allocatedBytes());
+        top = frame;
+    }
+
+    void exit() {
+        Frame frame = top;
+        frame.stop(allocatedBytes());
+        frame.parent.childNanos += frame.lastNanos;
+        frame.parent.childBytes += frame.lastBytes;
+        top = frame.parent;
+    }
+
+    private long allocatedBytes() {
+        return countBytes ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+            Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Writes a line per function with its calls, and its inclusive and exclusive time in
+     * milliseconds and allocations in kilobytes, in order of exclusive time. The time of
+     * a recursive call is included only once in its inclusive time.
+     */
+    void report(Appendable out) throws IOException {
+        Map<Symbol, Stats> stats = new HashMap<>();
+        collect(root, new HashSet<Symbol>(), stats);
+        List<Stats> sorted = new ArrayList<>(stats.values());
+        Collections.sort(sorted, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats s1, Stats s2) {
+                return Long.compare(s2.selfNanos, s1.selfNanos);
+            }
+        });
+
+        out.append(String.format("%-32s %10s %12s %12s %12s %12s%n",
+                                 "function", "calls", "incl ms", "excl ms", "incl KB", "excl KB"));
+        for (Stats s : sorted) {
+            out.append(String.format("%-32s %10d %12.3f %12.3f %12d %12d%n", s.name, s.calls,
+                                     s.totalNanos / 1e6, s.selfNanos / 1e6,
+                                     s.totalBytes / 1024, s.selfBytes / 1024));
+        }
+    }
+
+    private static void collect(Frame frame, Set<Symbol> onStack, Map<Symbol, Stats> stats) {
+        for (Frame child : frame.children.values()) {
+            Stats s = stats.get(child.name);
+            if (s == null) {
+                stats.put(child.name, s = new Stats(child.name));
+            }
+            s.calls += child.calls;
+            s.selfNanos += child.totalNanos - child.childTotalNanos;
+            s.selfBytes += child.totalBytes - child.childTotalBytes;
+            boolean outermost = onStack.add(child.name);
+            if (outermost) {
+                s.totalNanos += child.totalNanos;
+                s.totalBytes += child.totalBytes;
+            }
+            collect(child, onStack, stats);
+            if (outermost) {
+                onStack.remove(child.name);
+            }
+        }
+    }
+
+    /**
+     * Writes the stacks in the collapsed format read by flame graph tools: a line per
+     * stack, with the names from the outermost call separated by semicolons, followed by
+     * the exclusive time of the innermost call in microseconds.
+     */
+    void writeCollapsed(Appendable out) throws IOException {
+        writeCollapsed(root, "", out);
+    }
+
+    private static void writeCollapsed(Frame frame, String path, Appendable out) throws IOException {
+        for (Frame child : frame.children.values()) {
+            String childPath = path.isEmpty() ? child.name.toString() : path + ";" + child.name;
+            long micros = (child.totalNanos - child.childTotalNanos) / 1000;
+            if (micros > 0) {
+                out.append(childPath).append(' ').append(Long.toString(micros)).append('\n');
+            }
+            writeCollapsed(child, childPath, out);
+        }
+    }
+
+    // A node of the calling context tree. A node stands for a single stack, so it is
+    // active at most once at a time and can hold the state of the running call.
+    private static final class Frame {
+
+        final Frame parent;
+        final Symbol name;
+        final Map<Symbol, Frame> children = new LinkedHashMap<>();
+        long calls;
+        long totalNanos;
+        long totalBytes;
+        long childTotalNanos;
+        long childTotalBytes;
+
+        // The running call
+        long startNanos;
+        long startBytes;
+        long childNanos;
+        long childBytes;
+        long lastNanos;
+        long lastBytes;
+
+        Frame(Frame parent, Symbol name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        Frame child(Symbol name) {
+            Frame child = children.get(name);
+            if (child == null) {
+                children.put(name, child = new Frame(this, name));
+            }
+            return child;
+        }
+
+        void start(long bytes) {
+            childNanos = 0;
+            childBytes = 0;
+            startBytes = bytes;
+            startNanos = System.nanoTime();
+        }
+
+        void stop(long bytes) {
+            lastNanos = System.nanoTime() - startNanos;
+            lastBytes = bytes - startBytes;
+            totalNanos += lastNanos;
+            totalBytes += lastBytes;
+            childTotalNanos += childNanos;
+            childTotalBytes += childBytes;
+        }
+    }
+
+    private static final class Stats {
+
+        final Symbol name;
+        long calls;
+        long totalNanos;
+        long selfNanos;
+        long totalBytes;
+        long selfBytes;
+
+        Stats(Symbol name) {this.name = name;}
+    }
+
+}
@@ -1,12 +1,17 @@
 package org.toylisp;
 
-import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.toylisp.TokenStream.ATOM;
+import static org.toylisp.TokenStream.CLOSE;
+import static org.toylisp.TokenStream.CLOSE_BRACE;
+import static org.toylisp.TokenStream.CLOSE_BRACKET;
+import static org.toylisp.TokenStream.EOF;
 
 /**
  * Lisp Reader <br/>
@@ -19,123 +24,121 @@ public class Reader {
     static final Symbol CONCAT = Symbol.intern("concat");
     static final Symbol LIST = Symbol.intern("list");
 
-    private static void finishToken(StringBuilder token, List<String> tokens) {
-        if (token.length() > 0) {
-            tokens.add(token.toString());
-            token.delete(0, token.length());
-        }
-    }
-
     public static List<String> tokenize(String input) {
-        StringBuilder currentToken = new StringBuilder();
         List<String> tokens = new ArrayList<>(256);
-
-        boolean isInStr = false;
-        boolean isInComment = false;
-        char c = 0;
-        char c0;
-        for (int i = 0; i < input.length(); i++) {
-            c0 = c;
-            c = input.charAt(i);
-            if (isInStr) {
-                currentToken.append(c);
-                if (c == '"' && c0 != '\\') {
-                    finishToken(currentToken, tokens);
-                    isInStr = false;
-                }
-            } else if (isInComment) {
-                if (c == '\r' || c == '\n') {
-                    isInComment = false;
-                }
-            } else {
-                switch (c) {
-                    case '"':
-                        finishToken(currentToken, tokens);
-                        currentToken.append(c);
-                        isInStr = true;
-                        break;
-
-                    case ';':
-                        isInComment = true;
-                        break;
-
-                    case ',':
-                        finishToken(currentToken, tokens);
-                        currentToken.append(c);
-                        // Look ahead to see if it is ",@".
-                        if (i < input.length() - 1 && input.charAt(i + 1) == '@') {
-                            currentToken.append('@');
-                            i++;
-                        }
-                        finishToken(currentToken, tokens);
-                        break;
-
-                    case '\'':
-                    case '`':
-                    case '(':
-                    case ')':
-                        finishToken(currentToken, tokens);
-                        currentToken.append(c);
-                        finishToken(currentToken, tokens);
-                        break;
-
-                    case ' ':
-                    case '\t':
-                    case '\r':
-                    case '\n':
-                        finishToken(currentToken, tokens);
-                        break;
-
-                    default:
-                        currentToken.append(c);
-                }
-
-            }
+        TokenStream tokenStream = new TokenStream(input);
+        while (tokenStream.next() != EOF) {
+            tokens.add(tokenStream.text());
         }
-
-        finishToken(currentToken, tokens);
         return tokens;
     }
 
     public static List<Object> read(String input) {
-        return read(tokenize(input));
+        return readAll(new TokenStream(input));
     }
 
+    /**
+     * Reads forms from tokens split already, such as the ones returned by
+     * {@link #tokenize(String)}. Each string is taken as one token.
+     */
     public static List<Object> read(List<String> tokens) {
+        return readAll(new TokenStream(tokens.iterator()));
+    }
+
+    private static List<Object> readAll(TokenStream tokens) {
         List<Object> results = new ArrayList<>();
-        Iterator<String> tokenIter = tokens.iterator();
-        while (tokenIter.hasNext()) {
-            String currentToken = tokenIter.next();
-            results.add(read(currentToken, tokenIter, false));
+        int token;
+        while ((token = tokens.next()) != EOF) {
+            results.add(readForm(tokens, token));
         }
         return results;
     }
 
-    static Object read(String currentToken, Iterator<String> tokenIterator, boolean isInBackQuote) {
-        if (currentToken.equals(")")) {
-            throw new IllegalArgumentException("Unmatched parentheses: unexpected )");
+    // Reads a top level form, counting it while metrics are enabled
+    private static Object readForm(TokenStream tokens, int token) {
+        if (!Metrics.enabled) {
+            return read(tokens, token, false);
         }
-        Character firstChar = currentToken.charAt(0);
-        ObjectReader reader = readers.get(firstChar);
-        if (reader != null) {
-            return reader.readObj(currentToken, tokenIterator, isInBackQuote);
-        } else if (Character.isDigit(firstChar)) {
-            return ObjectReader.NUMBER_READER.readObj(currentToken, tokenIterator, isInBackQuote);
-        } else {
-            return ObjectReader.SYMBOL_READER.readObj(currentToken, tokenIterator, isInBackQuote);
+        long start = System.nanoTime();
+        Object event = JfrEvent.READ.begin();
+        Object form = read(tokens, token, false);
+        Metrics.formRead(start);
+        JfrEvent.commit(event);
+        return form;
+    }
+
+    /**
+     * Reads forms from a character stream one top level form at a time. Characters are
+     * consumed only as far as needed for the form being returned, so memory use is
+     * bounded by the largest form rather than by the size of the input.
+     */
+    public static Iterator<Object> stream(java.io.Reader input) {
+        final TokenStream tokens = new TokenStream(input);
+        return new Iterator<Object>() {
+            // Kind of the first token of the next form, -1 if not scanned yet
+            private int token = -1;
+
+            @Override
+            public boolean hasNext() {
+                if (token < 0) {
+                    token = tokens.next();
+                }
+                return token != EOF;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int first = token;
+                token = -1;
+                return readForm(tokens, first);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public static Iterator<Object> stream(ReadableByteChannel channel, String encoding) {
+        return stream(Channels.newReader(channel, encoding));
+    }
+
+    static Object read(TokenStream tokens, int token, boolean isInBackQuote) {
+        switch (token) {
+            case CLOSE:
+            case CLOSE_BRACKET:
+            case CLOSE_BRACE:
+                throw new IllegalArgumentException("Unmatched parentheses: unexpected " + tokens.text());
+            case EOF:
+                throw new IllegalArgumentException("Unexpected end of input");
+            case ATOM:
+                char firstChar = tokens.buf[tokens.start];
+                if (firstChar >= '0' && firstChar <= '9') {
+                    return ObjectReader.NUMBER_READER.readObj(tokens, isInBackQuote);
+                } else {
+                    return ObjectReader.SYMBOL_READER.readObj(tokens, isInBackQuote);
+                }
+            default:
+                return readers[token].readObj(tokens, isInBackQuote);
         }
     }
 
-    private static final Map<Character, ObjectReader> readers;
+    // Indexed by token kind
+    private static final ObjectReader[] readers = new ObjectReader[TokenStream.KINDS];
 
     static {
-        Map<Character, ObjectReader> readersMap = new HashMap<>();
-        readersMap.put('"', ObjectReader.STRING_READER);
-        readersMap.put('(', ObjectReader.SEXP_READER);
-        readersMap.put('\'', ObjectReader.QUOTE_READER);
-        readersMap.put('`', ObjectReader.BACKQUOTE_READER);
-        readersMap.put(',', ObjectReader.UNQUOTE_READER);
-        readers = Collections.unmodifiableMap(readersMap);
+        readers[TokenStream.STRING] = ObjectReader.STRING_READER;
+        readers[TokenStream.OPEN] = ObjectReader.SEXP_READER;
+        readers[TokenStream.OPEN_BRACKET] = ObjectReader.VECTOR_READER;
+        readers[TokenStream.OPEN_BRACE] = ObjectReader.MAP_READER;
+        readers[TokenStream.QUOTE] = ObjectReader.QUOTE_READER;
+        readers[TokenStream.BACKQUOTE] = ObjectReader.BACKQUOTE_READER;
+        readers[TokenStream.UNQUOTE] = ObjectReader.UNQUOTE_READER;
+        readers[TokenStream.UNQUOTE_SPLICING] = ObjectReader.UNQUOTE_SPLICING_READER;
     }
 
     // A special container that marks objects that need to be flattened (,@ inside backquote)
@@ -148,12 +151,24 @@ public class Reader {
 
         STRING_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
-                StringBuilder val = new StringBuilder();
-                boolean escaping = false;
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                char[] buf = tokens.buf;
                 // Ignore quotes
-                for (int i = 1; i < currentToken.length() - 1; i++) {
-                    char c = currentToken.charAt(i);
+                int start = tokens.start + 1;
+                int end = tokens.end - 1;
+                int i = start;
+                while (i < end && buf[i] != '\\') {
+                    i++;
+                }
+                if (i == end) {
+                    return new String(buf, start, end - start);
+                }
+
+                StringBuilder val = new StringBuilder(end - start);
+                val.append(buf, start, i - start);
+                boolean escaping = false;
+                for (; i < end; i++) {
+                    char c = buf[i];
                     if (escaping) {
                         switch (c) {
                             case 'n':
@@ -187,18 +202,32 @@ public class Reader {
 
         NUMBER_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
-                return new BigDecimal(currentToken);
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                // Up to 18 decimal digits always fit into a long
+                char[] buf = tokens.buf;
+                int end = tokens.end;
+                if (end - tokens.start <= 18) {
+                    long n = 0;
+                    int i = tokens.start;
+                    while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+                        n = n * 10 + (buf[i] - '0');
+                        i++;
+                    }
+                    if (i == end) {
+                        return n;
+                    }
+                }
+                return Numbers.parse(tokens.text());
             }
         },
 
         SYMBOL_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
-                if (currentToken.equals("nil") || currentToken.equals("null")) {
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                if (tokens.textEquals("nil") || tokens.textEquals("null")) {
                     return null;
                 } else {
-                    Symbol symbol = Symbol.intern(currentToken);
+                    Symbol symbol = Symbol.intern(tokens.buf, tokens.start, tokens.end - tokens.start);
                     return inBackQuote ? new Cons(QUOTE, new Cons(symbol, null)) : symbol;
                 }
             }
@@ -206,66 +235,118 @@ public class Reader {
 
         SEXP_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
                 List<Object> objs = new ArrayList<>();
                 if (inBackQuote) {
                     objs.add(CONCAT);
                 }
-                while (tokenIterator.hasNext()) {
-                    currentToken = tokenIterator.next();
-                    if (")".equals(currentToken)) {
-                        return Cons.fromList(objs);
-                    } else {
-                        Object obj = read(currentToken, tokenIterator, inBackQuote);
-                        if (inBackQuote) {
-                            if (obj instanceof NeedFlatten) {
-                                obj = ((NeedFlatten) obj).coll;
-                            } else {
-                                obj = new Cons(LIST, new Cons(obj, null));
-                            }
+                int token;
+                while ((token = readUntil(tokens, CLOSE, ")")) != CLOSE) {
+                    Object obj = read(tokens, token, inBackQuote);
+                    if (inBackQuote) {
+                        if (obj instanceof NeedFlatten) {
+                            obj = ((NeedFlatten) obj).coll;
+                        } else {
+                            obj = new Cons(LIST, new Cons(obj, null));
                         }
-                        objs.add(obj);
                     }
+                    objs.add(obj);
                 }
-                throw new IllegalArgumentException("Unmatched parentheses: need ) to match");
+                return Cons.fromList(objs);
             }
         },
 
-        BACKQUOTE_READER {
+        // Vector and map literals evaluate their elements, so inside a backquote the
+        // elements are read as backquoted forms and the literal is kept as it is
+        VECTOR_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
-                currentToken = tokenIterator.next();
-                return read(currentToken, tokenIterator, true);
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                return PersistentVector.create(readElements(tokens, CLOSE_BRACKET, "]", inBackQuote));
             }
         },
 
-        UNQUOTE_READER {
+        MAP_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
-                if (!tokenIterator.hasNext()) {
-                    throw new IllegalArgumentException("No argument found for unquote");
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                Object[] keyValues = readElements(tokens, CLOSE_BRACE, "}", inBackQuote);
+                if (keyValues.length % 2 != 0) {
+                    throw new IllegalArgumentException("Map literal must contain an even number of forms");
                 }
-                String nextToken = tokenIterator.next();
-                Object obj = read(nextToken, tokenIterator, false);
-                if (currentToken.contains("@")) {
-                    return new NeedFlatten(obj);
-                } else {
-                    return obj;
+                return PersistentHashMap.create(keyValues);
+            }
+        },
+
+        BACKQUOTE_READER {
+            @Override
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                int token = tokens.next();
+                if (token == EOF) {
+                    throw new IllegalArgumentException("No argument found for backquote");
                 }
+                return read(tokens, token, true);
+            }
+        },
+
+        UNQUOTE_READER {
+            @Override
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                return readUnquoted(tokens);
+            }
+        },
+
+        UNQUOTE_SPLICING_READER {
+            @Override
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                return new NeedFlatten(readUnquoted(tokens));
             }
         },
 
         QUOTE_READER {
             @Override
-            Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote) {
-                if (!tokenIterator.hasNext()) {
+            Object readObj(TokenStream tokens, boolean inBackQuote) {
+                int token = tokens.next();
+                if (token == EOF) {
                     throw new IllegalArgumentException("No argument found for quote");
                 }
-                return new Cons(QUOTE, new Cons(read(tokenIterator.next(), tokenIterator, inBackQuote), null));
+                return new Cons(QUOTE, new Cons(read(tokens, token, inBackQuote), null));
             }
         };
 
-        abstract Object readObj(String currentToken, Iterator<String> tokenIterator, boolean inBackQuote);
+        abstract Object readObj(TokenStream tokens, boolean inBackQuote);
+
+        // Returns the next token, failing at the end of the input or on the wrong closing
+        // delimiter
+        private static int readUntil(TokenStream tokens, int close, String closeText) {
+            int token = tokens.next();
+            if (token == EOF) {
+                throw new IllegalArgumentException("Unmatched parentheses: need " + closeText + " to match");
+            }
+            if (token != close && (token == CLOSE || token == CLOSE_BRACKET || token == CLOSE_BRACE)) {
+                throw new IllegalArgumentException("Unmatched parentheses: unexpected " + tokens.text());
+            }
+            return token;
+        }
+
+        private static Object[] readElements(TokenStream tokens, int close, String closeText, boolean inBackQuote) {
+            List<Object> objs = new ArrayList<>();
+            int token;
+            while ((token = readUntil(tokens, close, closeText)) != close) {
+                Object obj = read(tokens, token, inBackQuote);
+                if (obj instanceof NeedFlatten) {
+                    throw new IllegalArgumentException("Unquote splicing is only supported in lists");
+                }
+                objs.add(obj);
+            }
+            return objs.toArray();
+        }
+
+        private static Object readUnquoted(TokenStream tokens) {
+            int token = tokens.next();
+            if (token == EOF) {
+                throw new IllegalArgumentException("No argument found for unquote");
+            }
+            return read(tokens, token, false);
+        }
     }
 
 
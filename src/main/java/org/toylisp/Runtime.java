@@ -1,12 +1,19 @@
 package org.toylisp;
 
-import java.math.BigDecimal;
+import java.io.Serializable;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Runtime <br/>
@@ -21,12 +28,17 @@ public class Runtime {
     static final Symbol QUOTE = Symbol.intern("quote");
     static final Symbol DEF = Symbol.intern("def");
     static final Symbol DEFMACRO = Symbol.intern("defmacro");
+    static final Symbol MACROEXPAND = Symbol.intern("macroexpand");
 
     public static Cons cons(Object car, Object cdr) {
         return new Cons(car, cdr);
     }
 
     public static boolean bool(Object obj) {
+        if (obj instanceof LazySeq) {
+            // An empty lazy sequence is false like the empty list
+            return !((LazySeq) obj).isEmpty();
+        }
         return obj != null && !obj.equals(Boolean.FALSE);
     }
 
@@ -50,8 +62,22 @@ public class Runtime {
     }
 
     public static Object eval(Object form, Env env) {
+        if (!Metrics.enabled) {
+            return analyze(form, null).eval(env);
+        }
+        Metrics.topLevelForms.incrementAndGet();
+        Object event = JfrEvent.EVAL.begin();
+        try {
+            return analyze(form, null).eval(env);
+        } finally {
+            JfrEvent.commit(event);
+        }
+    }
+
+    static Node analyze(Object form, Scope scope) {
         if (form instanceof Symbol) {
-            return env.get((Symbol) form);
+            Node local = Scope.resolve(scope, (Symbol) form);
+            return local != null ? local : new Node.Ref((Symbol) form);
         } else if (form instanceof Cons) {
             Cons cons = (Cons) form;
             Object operator = cons.car();
@@ -59,73 +85,174 @@ public class Runtime {
             SpecialForm specialForm;
             if (operator instanceof Symbol &&
                 (specialForm = SpecialForm.getSpecialForm((Symbol) operator)) != null) {
-                return specialForm.run(params, env);
-            } else {
-                // function call or macro
-                IFunc func = (IFunc) eval(operator, env);
-                if (func instanceof IMacro) {
-                    return eval(macroExpand(func, params), env);
-                } else {
-                    return callFunc(func, params, env);
+                if (Metrics.enabled) {
+                    Metrics.specialForms.incrementAndGet();
                 }
+                return specialForm.analyze(params, scope);
+            } else {
+                // function call or macro, which can only be told apart at runtime
+                return new Node.Call(analyze(operator, scope), params, scope);
             }
+        } else if (form instanceof PersistentVector && ((PersistentVector) form).count() > 0) {
+            return new Node.VectorLiteral(analyzeAll(((PersistentVector) form).toArray(), scope));
+        } else if (form instanceof PersistentHashMap && ((PersistentHashMap) form).count() > 0) {
+            return new Node.MapLiteral(analyzeAll(((PersistentHashMap) form).toArray(), scope));
         } else {
             // Everything else evaluates to itself.
+            return new Node.Constant(Literals.constant(form));
+        }
+    }
+
+    /**
+     * Expands the form once if it is a macro call, with the macro looked up in env.
+     */
+    static Object macroExpand(Object form, Env env) {
+        if (!(form instanceof Cons)) {
             return form;
         }
+        Cons cons = (Cons) form;
+        Object operator = cons.car();
+        Cons params = (Cons) cons.cdr();
+        if (operator instanceof Symbol &&
+            (SpecialForm.getSpecialForm((Symbol) operator)) == null) {
+            Object func = env.lookupVar((Symbol) operator).value;
+            if (func instanceof IMacro) {
+                return macroExpand((IFunc) func, params);
+            }
+        }
+        return form;
     }
 
-    private static Object callFunc(IFunc func, Cons params, Env env) {List<Object> args = new ArrayList<>();
-        while (params != null) {
-            // eval arguments
-            args.add(eval(params.car(), env));
-            params = (Cons) params.cdr();
+    private static Node[] analyzeAll(Object[] forms, Scope scope) {
+        Node[] nodes = new Node[forms.length];
+        for (int i = 0; i < forms.length; i++) {
+            nodes[i] = analyze(forms[i], scope);
         }
-        return func.invoke(args.toArray());
+        return nodes;
     }
 
-    private static Object macroExpand(IFunc macro, Cons params) {
+    static Object macroExpand(IFunc macro, Cons params) {
         List<Object> args = new ArrayList<>();
         while (params != null) {
             // eval arguments
             args.add(params.car());
             params = (Cons) params.cdr();
         }
-        return macro.invoke(args.toArray());
+        if (!Metrics.enabled) {
+            return macro.invoke(args.toArray());
+        }
+        Metrics.macroExpansions.incrementAndGet();
+        Object event = JfrEvent.MACRO_EXPAND.begin();
+        try {
+            return macro.invoke(args.toArray());
+        } finally {
+            JfrEvent.commit(event, event != null ? macroName(macro) : null);
+        }
+    }
+
+    // The name recorded with a macro expansion event, null for an anonymous macro
+    private static String macroName(IFunc macro) {
+        Symbol name = macro instanceof Func ? ((Func) macro).name : null;
+        return name != null ? name.toString() : null;
+    }
+
+    // Sequence access shared by the builtins, for lists and lazy sequences alike
+
+    static Object first(Object seq) {
+        if (seq == null) {
+            return null;
+        } else if (seq instanceof Cons) {
+            return ((Cons) seq).car();
+        } else if (seq instanceof LazySeq) {
+            return ((LazySeq) seq).first();
+        } else if (seq instanceof PersistentVector) {
+            PersistentVector vector = (PersistentVector) seq;
+            return vector.count() > 0 ? vector.nth(0) : null;
+        }
+        throw notASequence(seq);
+    }
+
+    /**
+     * Returns the elements after the first one. The rest of a vector is a lazy sequence
+     * over it, so walking a vector with rest doesn't copy it.
+     */
+    static Object rest(Object seq) {
+        if (seq == null) {
+            return null;
+        } else if (seq instanceof Cons) {
+            return ((Cons) seq).cdr();
+        } else if (seq instanceof LazySeq) {
+            return ((LazySeq) seq).next();
+        } else if (seq instanceof PersistentVector) {
+            return LazySeq.seq(seq).next();
+        }
+        throw notASequence(seq);
+    }
+
+    static boolean hasItems(Object seq) {
+        if (seq instanceof LazySeq) {
+            return !((LazySeq) seq).isEmpty();
+        } else if (seq instanceof PersistentVector) {
+            return ((PersistentVector) seq).count() > 0;
+        }
+        return seq != null;
+    }
+
+    private static IllegalArgumentException notASequence(Object obj) {
+        return new IllegalArgumentException("Not a sequence: " + obj);
     }
 
     // Basic functions
-    static final IFunc cons = new IFunc() {
+    static final IFunc cons = new AFunc() {
+        @Override
+        public Object invoke2(Object car, Object cdr) {
+            return cons(car, cdr);
+        }
+
         @Override
         public Object invoke(Object... args) {
             ensureArity("cons", 2, args.length);
-            return cons(args[0], args[1]);
+            return invoke2(args[0], args[1]);
         }
     };
 
-    static final IFunc car = new IFunc() {
+    static final IFunc car = new AFunc() {
+        @Override
+        public Object invoke1(Object lst) {
+            return first(lst);
+        }
+
         @Override
         public Object invoke(Object... args) {
             ensureArity("car", 1, args.length);
-            if (args[0] == null) {
-                return null;
-            }
-            return ((Cons) args[0]).car();
+            return invoke1(args[0]);
         }
     };
 
-    static final IFunc cdr = new IFunc() {
+    static final IFunc cdr = new AFunc() {
+        @Override
+        public Object invoke1(Object lst) {
+            return rest(lst);
+        }
+
         @Override
         public Object invoke(Object... args) {
             ensureArity("cdr", 1, args.length);
-            if (args[0] == null) {
-                return null;
-            }
-            return ((Cons) args[0]).cdr();
+            return invoke1(args[0]);
         }
     };
 
-    static final IFunc list = new IFunc() {
+    static final IFunc list = new AFunc() {
+        @Override
+        public Object invoke1(Object arg1) {
+            return cons(arg1, null);
+        }
+
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return cons(arg1, cons(arg2, null));
+        }
+
         @Override
         public Object invoke(Object... args) {
             if (args.length == 0) {
@@ -135,39 +262,203 @@ public class Runtime {
         }
     };
 
-    static final IFunc concat = new IFunc() {
+    static final IFunc concat = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return Cons.concat((Cons) arg1, (Cons) arg2);
+        }
+
         @Override
         public Object invoke(Object... args) {
             return Cons.concat(args);
         }
     };
 
-    static final IFunc eq = new IFunc() {
+    // List functions, implemented as loops so that long lists do not grow the stack
+
+    // Creates accessors like cadr, ops is applied from right to left
+    private static IFunc cxr(final String ops) {
+        return new AFunc() {
+            @Override
+            public Object invoke1(Object lst) {
+                for (int i = ops.length() - 1; i >= 0; i--) {
+                    lst = ops.charAt(i) == 'a' ? first(lst) : rest(lst);
+                }
+                return lst;
+            }
+
+            @Override
+            public Object invoke(Object... args) {
+                ensureArity("c" + ops + "r", 1, args.length);
+                return invoke1(args[0]);
+            }
+        };
+    }
+
+    static final IFunc cadr = cxr("ad");
+    static final IFunc caar = cxr("aa");
+    static final IFunc cddr = cxr("dd");
+    static final IFunc caddr = cxr("add");
+    static final IFunc caadr = cxr("aad");
+    static final IFunc cadar = cxr("ada");
+
+    static final IFunc map = new AFunc() {
+        @Override
+        public Object invoke2(Object func, Object lst) {
+            IFunc f = (IFunc) func;
+            List<Object> results = new ArrayList<>();
+            for (; hasItems(lst); lst = rest(lst)) {
+                results.add(f.invoke1(first(lst)));
+            }
+            return Cons.fromList(results);
+        }
+
         @Override
         public Object invoke(Object... args) {
-            ensureArity("eq", 2, args.length);
-            return (args[0] instanceof Symbol) &&
-                   (args[1] instanceof Symbol) &&
-                   (args[0] == args[1]);
+            ensureArity("map", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc filter = new AFunc() {
+        @Override
+        public Object invoke2(Object pred, Object lst) {
+            IFunc p = (IFunc) pred;
+            List<Object> results = new ArrayList<>();
+            for (; hasItems(lst); lst = rest(lst)) {
+                Object x = first(lst);
+                if (bool(p.invoke1(x))) {
+                    results.add(x);
+                }
+            }
+            return Cons.fromList(results);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("filter", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc reduce = new AFunc() {
+        @Override
+        public Object invoke3(Object func, Object init, Object lst) {
+            IFunc f = (IFunc) func;
+            Object acc = init;
+            for (; hasItems(lst); lst = rest(lst)) {
+                acc = f.invoke2(acc, first(lst));
+            }
+            return acc;
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("reduce", 3, args.length);
+            return invoke3(args[0], args[1], args[2]);
+        }
+    };
+
+    static final IFunc reverse = new AFunc() {
+        @Override
+        public Object invoke1(Object lst) {
+            Cons reversed = null;
+            for (; hasItems(lst); lst = rest(lst)) {
+                reversed = cons(first(lst), reversed);
+            }
+            return reversed;
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("reverse", 1, args.length);
+            return invoke1(args[0]);
+        }
+    };
+
+    static final IFunc nth = new AFunc() {
+        @Override
+        public Object invoke2(Object coll, Object index) {
+            if (coll instanceof PersistentVector) {
+                return ((PersistentVector) coll).nth(((Number) index).intValue());
+            }
+            long n = ((Number) index).longValue();
+            Object lst = coll;
+            for (long i = 0; i < n && hasItems(lst); i++) {
+                lst = rest(lst);
+            }
+            if (n < 0 || !hasItems(lst)) {
+                throw new IndexOutOfBoundsException("nth: index " + n + " out of bounds");
+            }
+            return first(lst);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("nth", 2, args.length);
+            return invoke2(args[0], args[1]);
         }
     };
 
-    static final IFunc equal = new IFunc() {
+    // The result shares the last list
+    static final IFunc append = new AFunc() {
+        @Override
+        public Object invoke(Object... args) {
+            if (args.length == 0) {
+                return null;
+            }
+            List<Object> items = new ArrayList<>();
+            for (int i = 0; i < args.length - 1; i++) {
+                for (Object lst = args[i]; hasItems(lst); lst = rest(lst)) {
+                    items.add(first(lst));
+                }
+            }
+            Object tail = args[args.length - 1];
+            for (int i = items.size() - 1; i >= 0; i--) {
+                tail = cons(items.get(i), tail);
+            }
+            return tail;
+        }
+    };
+
+    static final IFunc eq = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return (arg1 instanceof Symbol) &&
+                   (arg2 instanceof Symbol) &&
+                   (arg1 == arg2);
+        }
+
         @Override
         public Object invoke(Object... args) {
             ensureArity("eq", 2, args.length);
-            if (args[0] == null) {
-                if (args[1] == null) {
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc equal = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            if (arg1 == null) {
+                if (arg2 == null) {
                     return true;
                 }
+            } else if (arg1 instanceof Number && arg2 instanceof Number) {
+                return Numbers.equiv((Number) arg1, (Number) arg2);
             } else {
-                return args[0].equals(args[1]);
+                return arg1.equals(arg2);
             }
             return false;
         }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("eq", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
     };
 
-    static final IFunc prn = new IFunc() {
+    static final IFunc prn = new AFunc() {
         @Override
         public Object invoke(Object... args) {
             StringBuilder msg = new StringBuilder(64);
@@ -179,81 +470,497 @@ public class Runtime {
         }
     };
 
-    static final IFunc plus = new IFunc() {
+    static final IFunc plus = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return Numbers.add(arg1, arg2);
+        }
+
         @Override
         public Object invoke(Object... args) {
             if (args.length == 0) {
-                return new BigDecimal(0);
+                return 0L;
             }
-            BigDecimal res = (BigDecimal) args[0];
+            Object res = args[0];
             for (int i = 1; i < args.length; i++) {
-                res = res.add((BigDecimal) args[i]);
+                res = Numbers.add(res, args[i]);
             }
             return res;
         }
     };
 
-    static final IFunc minus = new IFunc() {
+    static final IFunc minus = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return Numbers.subtract(arg1, arg2);
+        }
+
         @Override
         public Object invoke(Object... args) {
             if (args.length == 0) {
-                return new BigDecimal(0);
+                return 0L;
             }
-            BigDecimal res = (BigDecimal) args[0];
+            Object res = args[0];
             for (int i = 1; i < args.length; i++) {
-                res = res.subtract((BigDecimal) args[i]);
+                res = Numbers.subtract(res, args[i]);
             }
             return res;
         }
     };
 
-    static final IFunc multiply = new IFunc() {
+    static final IFunc multiply = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return Numbers.multiply(arg1, arg2);
+        }
+
         @Override
         public Object invoke(Object... args) {
             if (args.length == 0) {
-                return new BigDecimal(1);
+                return 1L;
             }
-            BigDecimal res = (BigDecimal) args[0];
+            Object res = args[0];
             for (int i = 1; i < args.length; i++) {
-                res = res.multiply((BigDecimal) args[i]);
+                res = Numbers.multiply(res, args[i]);
             }
             return res;
         }
     };
 
-    static final IFunc divide = new IFunc() {
+    static final IFunc divide = new AFunc() {
+        @Override
+        public Object invoke2(Object arg1, Object arg2) {
+            return Numbers.divide(arg1, arg2);
+        }
+
         @Override
         public Object invoke(Object... args) {
             if (args.length == 0) {
-                return new BigDecimal(1);
+                return 1L;
             }
-            BigDecimal res = (BigDecimal) args[0];
+            Object res = args[0];
             for (int i = 1; i < args.length; i++) {
-                res = res.divideToIntegralValue((BigDecimal) args[i]);
+                res = Numbers.divide(res, args[i]);
             }
             return res;
         }
     };
 
-    static final IFunc macroexpand = new IFunc() {
+    // Collections
+
+    static final IFunc vector = new AFunc() {
+        @Override
+        public Object invoke(Object... args) {
+            return PersistentVector.create(args);
+        }
+    };
+
+    static final IFunc hashMap = new AFunc() {
         @Override
         public Object invoke(Object... args) {
-            ensureArity("eq", 1, args.length);
-            Object form = args[0];
-            if (!(form instanceof Cons)) {
-                return form;
+            return PersistentHashMap.create(args);
+        }
+    };
+
+    static final IFunc get = new AFunc() {
+        @Override
+        public Object invoke2(Object coll, Object key) {
+            return invoke3(coll, key, null);
+        }
+
+        @Override
+        public Object invoke3(Object coll, Object key, Object notFound) {
+            if (coll instanceof PersistentHashMap) {
+                return ((PersistentHashMap) coll).get(key, notFound);
+            } else if (coll instanceof PersistentVector) {
+                PersistentVector vector = (PersistentVector) coll;
+                if (key instanceof Number) {
+                    long i = ((Number) key).longValue();
+                    if (i >= 0 && i < vector.count()) {
+                        return vector.nth((int) i);
+                    }
+                }
+                return notFound;
+            } else if (coll == null) {
+                return notFound;
             }
-            Cons cons = (Cons) form;
-            Object operator = cons.car();
-            Cons params = (Cons) cons.cdr();
-            if (operator instanceof Symbol &&
-                (SpecialForm.getSpecialForm((Symbol) operator)) == null) {
-                IFunc func = (IFunc) eval(operator, getRootEnv());
-                if (func instanceof IMacro) {
-                    return macroExpand(func, params);
+            throw new IllegalArgumentException("get: not a vector or map: " + coll);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            if (args.length == 2) {
+                return invoke2(args[0], args[1]);
+            }
+            ensureArity("get", 3, args.length);
+            return invoke3(args[0], args[1], args[2]);
+        }
+    };
+
+    static final IFunc assoc = new AFunc() {
+        @Override
+        public Object invoke3(Object coll, Object key, Object val) {
+            if (coll == null || coll instanceof PersistentHashMap) {
+                PersistentHashMap map = coll == null ? PersistentHashMap.EMPTY : (PersistentHashMap) coll;
+                return map.assoc(key, val);
+            } else if (coll instanceof PersistentVector) {
+                return ((PersistentVector) coll).assocN(((Number) key).intValue(), val);
+            }
+            throw new IllegalArgumentException("assoc: not a vector or map: " + coll);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("assoc", 3, args.length);
+            return invoke3(args[0], args[1], args[2]);
+        }
+    };
+
+    static final IFunc conj = new AFunc() {
+        @Override
+        public Object invoke2(Object coll, Object x) {
+            if (coll instanceof PersistentVector) {
+                return ((PersistentVector) coll).conj(x);
+            } else if (coll instanceof PersistentHashMap) {
+                // x is a [key value] pair
+                PersistentVector entry = (PersistentVector) x;
+                if (entry.count() != 2) {
+                    throw new IllegalArgumentException("conj: map entry must be a [key value] vector");
                 }
+                return ((PersistentHashMap) coll).assoc(entry.nth(0), entry.nth(1));
+            } else if (coll == null || coll instanceof Cons) {
+                return cons(x, coll);
             }
-            return form;
+            throw new IllegalArgumentException("conj: not a collection: " + coll);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("conj", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc count = new AFunc() {
+        @Override
+        public Object invoke1(Object coll) {
+            if (coll == null) {
+                return 0L;
+            } else if (coll instanceof PersistentVector) {
+                return (long) ((PersistentVector) coll).count();
+            } else if (coll instanceof PersistentHashMap) {
+                return (long) ((PersistentHashMap) coll).count();
+            } else if (coll instanceof String) {
+                return (long) ((String) coll).length();
+            } else if (coll instanceof Cons || coll instanceof LazySeq) {
+                long n = 0;
+                for (Object tail = coll; hasItems(tail); tail = rest(tail)) {
+                    n++;
+                }
+                return n;
+            }
+            throw new IllegalArgumentException("count: not a collection: " + coll);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("count", 1, args.length);
+            return invoke1(args[0]);
+        }
+    };
+
+    // Lazy sequences
+
+    static final IFunc lazyMap = new AFunc() {
+        @Override
+        public Object invoke2(Object func, Object seq) {
+            return LazySeq.map((IFunc) func, seq);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("lazy-map", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc lazyFilter = new AFunc() {
+        @Override
+        public Object invoke2(Object pred, Object seq) {
+            return LazySeq.filter((IFunc) pred, seq);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("lazy-filter", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc lazyTake = new AFunc() {
+        @Override
+        public Object invoke2(Object n, Object seq) {
+            return LazySeq.take(((Number) n).longValue(), seq);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("take", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc range = new AFunc() {
+        @Override
+        public Object invoke0() {
+            return LazySeq.range(0L, null, 1L);
+        }
+
+        @Override
+        public Object invoke1(Object end) {
+            return LazySeq.range(0L, (Number) end, 1L);
+        }
+
+        @Override
+        public Object invoke2(Object start, Object end) {
+            return LazySeq.range((Number) start, (Number) end, 1L);
+        }
+
+        @Override
+        public Object invoke3(Object start, Object end, Object step) {
+            return LazySeq.range((Number) start, (Number) end, (Number) step);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            switch (args.length) {
+                case 0:
+                    return invoke0();
+                case 1:
+                    return invoke1(args[0]);
+                case 2:
+                    return invoke2(args[0], args[1]);
+                case 3:
+                    return invoke3(args[0], args[1], args[2]);
+                default:
+                    throw new IllegalArgumentException("range: expect 0 to 3 args, " + args.length + " given");
+            }
+        }
+    };
+
+    static final IFunc iterate = new AFunc() {
+        @Override
+        public Object invoke2(Object func, Object x) {
+            return LazySeq.iterate((IFunc) func, x);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("iterate", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    // Concurrency
+
+    // Runs futures, on virtual threads where the JVM has them
+    static final ExecutorService executor = createExecutor();
+
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    // Pending futures must not keep the JVM alive
+                    Thread thread = defaultFactory.newThread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private static IllegalStateException interrupted(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new IllegalStateException("Interrupted", e);
+    }
+
+    static final IFunc futureCall = new AFunc() {
+        @Override
+        public Object invoke1(final Object func) {
+            return executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return ((IFunc) func).invoke0();
+                }
+            });
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("future-call", 1, args.length);
+            return invoke1(args[0]);
+        }
+    };
+
+    static final IFunc deref = new AFunc() {
+        @Override
+        public Object invoke1(Object future) {
+            try {
+                return ((Future<?>) future).get();
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("deref", 1, args.length);
+            return invoke1(args[0]);
+        }
+    };
+
+    static final IFunc chan = new AFunc() {
+        @Override
+        public Object invoke0() {
+            return new Channel(1);
+        }
+
+        @Override
+        public Object invoke1(Object capacity) {
+            return new Channel(((Number) capacity).intValue());
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            if (args.length > 1) {
+                throw new IllegalArgumentException("chan: expect 0 or 1 args, " + args.length + " given");
+            }
+            return args.length == 0 ? invoke0() : invoke1(args[0]);
+        }
+    };
+
+    static final IFunc put = new AFunc() {
+        @Override
+        public Object invoke2(Object channel, Object value) {
+            try {
+                return ((Channel) channel).put(value) ? Boolean.TRUE : null;
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            }
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("put!", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc take = new AFunc() {
+        @Override
+        public Object invoke1(Object channel) {
+            try {
+                return ((Channel) channel).take();
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            }
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("take!", 1, args.length);
+            return invoke1(args[0]);
+        }
+    };
+
+    static final IFunc close = new AFunc() {
+        @Override
+        public Object invoke1(Object channel) {
+            ((Channel) channel).close();
+            return null;
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("close!", 1, args.length);
+            return invoke1(args[0]);
+        }
+    };
+
+    static final IFunc select = new AFunc() {
+        @Override
+        public Object invoke(Object... args) {
+            if (args.length == 0) {
+                throw new IllegalArgumentException("select: no channel given");
+            }
+            try {
+                return Channel.select(Arrays.copyOf(args, args.length, Channel[].class));
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            }
+        }
+    };
+
+    static final IFunc pmap = new AFunc() {
+        @Override
+        public Object invoke2(Object func, Object list) {
+            return Parallel.map((IFunc) func, list);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("pmap", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc pfilter = new AFunc() {
+        @Override
+        public Object invoke2(Object pred, Object list) {
+            return Parallel.filter((IFunc) pred, list);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("pfilter", 2, args.length);
+            return invoke2(args[0], args[1]);
+        }
+    };
+
+    static final IFunc preduce = new AFunc() {
+        @Override
+        public Object invoke3(Object func, Object init, Object list) {
+            return Parallel.reduce((IFunc) func, init, list);
+        }
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("preduce", 3, args.length);
+            return invoke3(args[0], args[1], args[2]);
+        }
+    };
+
+    static final IFunc profileCall = new AFunc() {
+        @Override
+        public Object invoke(Object... args) {
+            if (args.length != 1 && args.length != 2) {
+                throw new IllegalArgumentException("profile-call: expect 1 or 2 args, " + args.length + " given");
+            }
+            return Profiler.profile((IFunc) args[0], args.length > 1 ? (String) args[1] : null);
         }
     };
 
@@ -271,81 +978,72 @@ public class Runtime {
 
         _cond(COND) {
             @Override
-            Object run(Cons args, Env env) {
+            Node analyze(Cons args, Scope scope) {
                 if (args == null) {
                     throw new IllegalStateException("cond: no clause found");
                 }
+                List<Node> preds = new ArrayList<>();
+                List<Node> exprs = new ArrayList<>();
                 while (args != null) {
                     Cons clause = (Cons) args.car();
-                    Object pred = clause.car();
-                    Cons expr = (Cons) clause.cdr();
-                    if (clause == null || pred == null || expr == null || expr.cdr() != null) {
+                    if (clause == null || clause.car() == null ||
+                        clause.cdr() == null || ((Cons) clause.cdr()).cdr() != null) {
                         throw new IllegalArgumentException("cond: invalid clause");
                     }
-                    if (bool(eval(pred, env))) {
-                        return eval(expr.car(), env);
-                    }
+                    preds.add(Runtime.analyze(clause.car(), scope));
+                    exprs.add(Runtime.analyze(((Cons) clause.cdr()).car(), scope));
                     args = (Cons) args.cdr();
                 }
-                return null;
+                return new Node.Cond(preds.toArray(new Node[preds.size()]),
+                                     exprs.toArray(new Node[exprs.size()]));
             }
         },
 
         _def(DEF) {
             @Override
-            Object run(Cons args, Env env) {
+            Node analyze(Cons args, Scope scope) {
                 ensureArity("def", 2, args);
 
                 Symbol name = (Symbol) args.car();
                 Object form = ((Cons) args.cdr()).car();
-
-                Object obj = eval(form, env);
-                getRootEnv().set(name, obj);
-                return obj;
+                return new Node.Def(name, Runtime.analyze(form, scope));
             }
         },
 
         _quote(QUOTE) {
             @Override
-            Object run(Cons args, Env env) {
+            Node analyze(Cons args, Scope scope) {
                 if (args.cdr() != null) {
                     throw new IllegalArgumentException("Can only quote one argument");
                 }
-                return args.car();
+                return new Node.Constant(Literals.constant(args.car()));
             }
         },
 
         _lambda(LAMBDA) {
             @Override
-            Object run(Cons definition, Env env) {
-                List<Symbol> argNames = getArgNames((Cons) definition.car());
-                Cons body = cons(DO, definition.cdr());
-                return new Func(Collections.unmodifiableList(argNames), body, env);
+            Node analyze(Cons definition, Scope scope) {
+                Scope params = Scope.forParams(getArgNames((Cons) definition.car()), scope);
+                Node body = new Node.FuncBody(new Node.Do((Cons) definition.cdr(), params));
+                return new Node.Lambda(params, body);
             }
         },
 
         _defmacro(DEFMACRO) {
             @Override
-            Object run(Cons definition, Env env) {
+            Node analyze(Cons definition, Scope scope) {
                 Symbol name = (Symbol) definition.car();
                 Cons argsBody = (Cons) definition.cdr();
-                List<Symbol> argNames = getArgNames((Cons) argsBody.car());
-                Cons body = cons(DO, argsBody.cdr());
-                Macro macro = new Macro(Collections.unmodifiableList(argNames), body, env);
-                getRootEnv().set(name, macro);
-                return macro;
+                Scope params = Scope.forParams(getArgNames((Cons) argsBody.car()), scope);
+                Node body = new Node.FuncBody(new Node.Do((Cons) argsBody.cdr(), params));
+                return new Node.DefMacro(name, params, body);
             }
         },
 
         _do(DO) {
             @Override
-            Object run(Cons args, Env env) {
-                Object ret = null;
-                while (args != null) {
-                    ret = Runtime.eval(args.car(), env);
-                    args = (Cons) args.cdr();
-                }
-                return ret;
+            Node analyze(Cons args, Scope scope) {
+                return new Node.Do(args, scope);
             }
         };
 
@@ -361,27 +1059,104 @@ public class Runtime {
 
         SpecialForm(Symbol operator) {this.operator = operator;}
 
-        abstract Object run(Cons args, Env env);
+        abstract Node analyze(Cons args, Scope scope);
 
         public static SpecialForm getSpecialForm(Symbol operator) {
             return specialForms.get(operator);
         }
     }
 
-    static final Env rootEnv = Env.createRoot()
-                                  .set(Symbol.intern("cons"), cons)
-                                  .set(Symbol.intern("car"), car)
-                                  .set(Symbol.intern("cdr"), cdr)
-                                  .set(Symbol.intern("list"), list)
-                                  .set(Symbol.intern("concat"), concat)
-                                  .set(Symbol.intern("eq?"), eq)
-                                  .set(Symbol.intern("="), equal)
-                                  .set(Symbol.intern("prn"), prn)
-                                  .set(Symbol.intern("+"), plus)
-                                  .set(Symbol.intern("-"), minus)
-                                  .set(Symbol.intern("*"), multiply)
-                                  .set(Symbol.intern("/"), divide)
-                                  .set(Symbol.intern("macroexpand"), macroexpand)
-                                  .set(Symbol.intern("t"), Boolean.TRUE);
+    // Functions implemented in Java by the name they are bound to. A saved image refers to
+    // them by name, see Image.
+    static final Map<Symbol, IFunc> builtins = new LinkedHashMap<>();
+
+    static {
+        builtins.put(Symbol.intern("cons"), cons);
+        builtins.put(Symbol.intern("car"), car);
+        builtins.put(Symbol.intern("cdr"), cdr);
+        builtins.put(Symbol.intern("list"), list);
+        builtins.put(Symbol.intern("concat"), concat);
+        builtins.put(Symbol.intern("cadr"), cadr);
+        builtins.put(Symbol.intern("caar"), caar);
+        builtins.put(Symbol.intern("cddr"), cddr);
+        builtins.put(Symbol.intern("caddr"), caddr);
+        builtins.put(Symbol.intern("caadr"), caadr);
+        builtins.put(Symbol.intern("cadar"), cadar);
+        builtins.put(Symbol.intern("map"), map);
+        builtins.put(Symbol.intern("filter"), filter);
+        builtins.put(Symbol.intern("reduce"), reduce);
+        builtins.put(Symbol.intern("reverse"), reverse);
+        builtins.put(Symbol.intern("nth"), nth);
+        builtins.put(Symbol.intern("append"), append);
+        builtins.put(Symbol.intern("eq?"), eq);
+        builtins.put(Symbol.intern("="), equal);
+        builtins.put(Symbol.intern("prn"), prn);
+        builtins.put(Symbol.intern("+"), plus);
+        builtins.put(Symbol.intern("-"), minus);
+        builtins.put(Symbol.intern("*"), multiply);
+        builtins.put(Symbol.intern("/"), divide);
+        builtins.put(Symbol.intern("vector"), vector);
+        builtins.put(Symbol.intern("hash-map"), hashMap);
+        builtins.put(Symbol.intern("get"), get);
+        builtins.put(Symbol.intern("assoc"), assoc);
+        builtins.put(Symbol.intern("conj"), conj);
+        builtins.put(Symbol.intern("count"), count);
+        builtins.put(Symbol.intern("length"), count);
+        builtins.put(Symbol.intern("lazy-map"), lazyMap);
+        builtins.put(Symbol.intern("lazy-filter"), lazyFilter);
+        builtins.put(Symbol.intern("take"), lazyTake);
+        builtins.put(Symbol.intern("range"), range);
+        builtins.put(Symbol.intern("iterate"), iterate);
+        builtins.put(Symbol.intern("future-call"), futureCall);
+        builtins.put(Symbol.intern("deref"), deref);
+        builtins.put(Symbol.intern("chan"), chan);
+        builtins.put(Symbol.intern("put!"), put);
+        builtins.put(Symbol.intern("take!"), take);
+        builtins.put(Symbol.intern("close!"), close);
+        builtins.put(Symbol.intern("select"), select);
+        builtins.put(Symbol.intern("pmap"), pmap);
+        builtins.put(Symbol.intern("pfilter"), pfilter);
+        builtins.put(Symbol.intern("preduce"), preduce);
+        builtins.put(Symbol.intern("profile-call"), profileCall);
+    }
+
+    static final Env rootEnv = createRootEnv();
+
+    static Env createRootEnv() {
+        Env env = Env.createRoot();
+        for (Map.Entry<Symbol, IFunc> builtin : builtins.entrySet()) {
+            env.set(builtin.getKey(), builtin.getValue());
+        }
+        env.set(MACROEXPAND, new MacroExpander(env));
+        return env.set(Symbol.intern("t"), Boolean.TRUE);
+    }
+
+    /**
+     * Creates a root env laid over the shared root, with the builtins bound to a root env
+     * of its own.
+     */
+    static Env createOverlay(Env shared) {
+        Env env = Env.createOverlay(shared);
+        return env.set(MACROEXPAND, new MacroExpander(env));
+    }
+
+    /**
+     * The macroexpand builtin of a root env, which looks macros up in that env. Every root
+     * env binds its own, so it stays a plain function that can be passed around.
+     */
+    static final class MacroExpander extends AFunc implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Env root;
+
+        MacroExpander(Env root) {this.root = root;}
+
+        @Override
+        public Object invoke(Object... args) {
+            ensureArity("macroexpand", 1, args.length);
+            return macroExpand(args[0], root);
+        }
+    }
 
 }
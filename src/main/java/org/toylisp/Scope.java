@@ -0,0 +1,68 @@
+package org.toylisp;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Compile time view of the lambda parameters visible to a form. Every scope corresponds
+ * to one array-backed frame at runtime, so a local variable can be resolved to a
+ * (depth, slot) pair when its lambda is analyzed. <br/>
+ *
+ * @author jerry created 18/10/26
+ */
+final class Scope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final Symbol AND = Symbol.intern("&");
+
+    final Scope parent;
+    // Slot names in frame order, the rest arg (if any) takes the last slot
+    private final Symbol[] names;
+    final int arity;
+    final boolean hasRestArgs;
+
+    private Scope(Scope parent, Symbol[] names, int arity, boolean hasRestArgs) {
+        this.parent = parent;
+        this.names = names;
+        this.arity = arity;
+        this.hasRestArgs = hasRestArgs;
+    }
+
+    static Scope forParams(List<Symbol> argNames, Scope parent) {
+        int i = argNames.indexOf(AND);
+        if (i < 0) {
+            return new Scope(parent, argNames.toArray(new Symbol[argNames.size()]), argNames.size(), false);
+        }
+        // There can only be one rest arg
+        // eg. (bindings & body) is valid, (bindings & body1 body2) is not.
+        if (i != argNames.size() - 2) {
+            throw new IllegalArgumentException("Invalid rest arg declaration");
+        }
+        Symbol[] names = argNames.subList(0, i).toArray(new Symbol[i + 1]);
+        names[i] = argNames.get(i + 1);
+        return new Scope(parent, names, i, true);
+    }
+
+    int frameSize() {
+        return names.length;
+    }
+
+    /**
+     * Resolves a symbol against this scope and its parents.
+     *
+     * @return a node reading the local variable, or null if the symbol is not lexically bound
+     */
+    static Node resolve(Scope scope, Symbol name) {
+        for (int depth = 0; scope != null; depth++, scope = scope.parent) {
+            // Search backwards so that the last of several same-named params wins
+            for (int slot = scope.names.length - 1; slot >= 0; slot--) {
+                if (scope.names[slot] == name) {
+                    return new Node.Local(depth, slot);
+                }
+            }
+        }
+        return null;
+    }
+
+}
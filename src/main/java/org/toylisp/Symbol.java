@@ -1,32 +1,136 @@
 package org.toylisp;
 
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * Symbol <br/>
  *
+ * Symbols are interned, so they are compared by identity. The table holds them weakly: a
+ * symbol that is no longer referenced, by code, data or an environment binding it, is
+ * collected, and interning the name again creates a new one.
+ *
  * @author jerry created 14/11/26
  */
-public class Symbol {
+public class Symbol implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ConcurrentMap<String, SymbolRef> allSymbols = new ConcurrentHashMap<>(128);
+    private static final ReferenceQueue<Symbol> collected = new ReferenceQueue<>();
 
-    private static ConcurrentMap<String, Symbol> allSymbols = new ConcurrentHashMap<>(128);
+    // Direct mapped cache in front of allSymbols, so that the reader can intern a symbol
+    // straight from its input buffer without creating a String for it. It also keeps the
+    // most recently read symbols alive.
+    private static final Symbol[] charsCache = new Symbol[1024];
 
     private final String name;
+    private final int hash;
+    // The var last looked up for this symbol in a root scope, see Env#lookupVar
+    private transient volatile WeakReference<Var> lastVar;
 
-    private Symbol(String name) {this.name = name;}
+    private Symbol(String name) {
+        this.name = name;
+        this.hash = name.hashCode();
+    }
 
     public static Symbol intern(String name) {
-        Symbol sym = allSymbols.get(name);
-        if (sym == null) {
-            Symbol newSymbol = new Symbol(name);
-            if ((sym = allSymbols.putIfAbsent(name, newSymbol)) == null) {
-                sym = newSymbol;
+        SymbolRef ref = allSymbols.get(name);
+        Symbol sym = ref != null ? ref.get() : null;
+        if (sym != null) {
+            return sym;
+        }
+        purge();
+        Symbol newSymbol = new Symbol(name);
+        SymbolRef newRef = new SymbolRef(newSymbol);
+        while (true) {
+            if ((ref = allSymbols.putIfAbsent(name, newRef)) == null) {
+                return newSymbol;
             }
+            if ((sym = ref.get()) != null) {
+                return sym;
+            }
+            // The symbol in the table was collected but its entry is not purged yet
+            if (allSymbols.replace(name, ref, newRef)) {
+                return newSymbol;
+            }
+        }
+    }
+
+    // Removes the entries of collected symbols
+    private static void purge() {
+        Reference<? extends Symbol> ref;
+        while ((ref = collected.poll()) != null) {
+            allSymbols.remove(((SymbolRef) ref).name, ref);
+        }
+    }
+
+    // The entry of the table for the name, or null
+    static Reference<Symbol> tableEntry(String name) {
+        return allSymbols.get(name);
+    }
+
+    private static final class SymbolRef extends WeakReference<Symbol> {
+
+        final String name;
+
+        SymbolRef(Symbol symbol) {
+            super(symbol, collected);
+            this.name = symbol.name;
+        }
+    }
+
+    static Symbol intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (charsCache.length - 1);
+        Symbol sym = charsCache[index];
+        if (sym == null || !sym.nameEquals(chars, offset, length)) {
+            sym = intern(new String(chars, offset, length));
+            charsCache[index] = sym;
         }
         return sym;
     }
 
+    private boolean nameEquals(char[] chars, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Var cachedVar(Env root) {
+        WeakReference<Var> ref = lastVar;
+        Var var = ref != null ? ref.get() : null;
+        return var != null && var.owner == root ? var : null;
+    }
+
+    void cacheVar(Var var) {
+        lastVar = new WeakReference<>(var);
+    }
+
+    // Symbols are compared by identity, so a deserialized symbol must be the interned one
+    private Object readResolve() throws ObjectStreamException {
+        return intern(name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return name;
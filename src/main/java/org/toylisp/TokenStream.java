@@ -0,0 +1,290 @@
+package org.toylisp;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Lexer splitting the characters pulled from a {@link java.io.Reader} into tokens on
+ * demand. <br/>
+ *
+ * Tokens are not turned into strings: {@link #next()} returns the kind of the token, and
+ * its text is the range [{@link #start}, {@link #end}) of {@link #buf}, valid until the next
+ * call. Characters are classified through a lookup table. Only the current token and the
+ * buffer are kept in memory, so input of any size can be read form by form. A stream can
+ * also be made of tokens split already, each of them is taken as a whole.
+ *
+ * @author jerry created 18/10/26
+ */
+final class TokenStream {
+
+    // Token kinds
+    static final int EOF = 0;
+    static final int ATOM = 1;
+    static final int STRING = 2;
+    static final int OPEN = 3;
+    static final int CLOSE = 4;
+    static final int QUOTE = 5;
+    static final int BACKQUOTE = 6;
+    static final int UNQUOTE = 7;
+    static final int UNQUOTE_SPLICING = 8;
+    static final int OPEN_BRACKET = 9;
+    static final int CLOSE_BRACKET = 10;
+    static final int OPEN_BRACE = 11;
+    static final int CLOSE_BRACE = 12;
+    static final int KINDS = 13;
+
+    // Character classes, anything not in the table is part of an atom
+    private static final byte CONSTITUENT = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte DELIMITER = 2;
+    private static final byte DOUBLE_QUOTE = 3;
+    private static final byte COMMENT = 4;
+    private static final byte COMMA = 5;
+
+    private static final byte[] charClasses = new byte[128];
+
+    static {
+        charClasses[' '] = WHITESPACE;
+        charClasses['\t'] = WHITESPACE;
+        charClasses['\r'] = WHITESPACE;
+        charClasses['\n'] = WHITESPACE;
+        charClasses['('] = DELIMITER;
+        charClasses[')'] = DELIMITER;
+        charClasses['['] = DELIMITER;
+        charClasses[']'] = DELIMITER;
+        charClasses['{'] = DELIMITER;
+        charClasses['}'] = DELIMITER;
+        charClasses['\''] = DELIMITER;
+        charClasses['`'] = DELIMITER;
+        charClasses['"'] = DOUBLE_QUOTE;
+        charClasses[';'] = COMMENT;
+        charClasses[','] = COMMA;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final java.io.Reader input;
+    // Tokens split already, or null to scan the input
+    private final Iterator<String> tokens;
+    char[] buf;
+    int start;
+    int end;
+    private int pos;
+    private int limit;
+
+    TokenStream(java.io.Reader input) {
+        this.input = input;
+        this.tokens = null;
+        this.buf = new char[BUFFER_SIZE];
+    }
+
+    TokenStream(String input) {
+        this.input = null;
+        this.tokens = null;
+        this.buf = input.toCharArray();
+        this.limit = buf.length;
+        if (Metrics.enabled) {
+            Metrics.readerChars.addAndGet(limit);
+        }
+    }
+
+    TokenStream(Iterator<String> tokens) {
+        this.input = null;
+        this.tokens = tokens;
+        this.buf = new char[0];
+    }
+
+    private static int classOf(char c) {
+        return c < 128 ? charClasses[c] : CONSTITUENT;
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return the kind of the token, {@link #EOF} at the end of the input
+     */
+    int next() {
+        if (tokens != null) {
+            return nextSplit();
+        }
+
+        // Skip whitespace and comments
+        for (; ; ) {
+            if (pos == limit && !fill(pos)) {
+                start = end = pos;
+                return EOF;
+            }
+            int cls = classOf(buf[pos]);
+            if (cls == WHITESPACE) {
+                pos++;
+            } else if (cls == COMMENT) {
+                skipComment();
+            } else {
+                break;
+            }
+        }
+
+        start = pos;
+        char c = buf[pos++];
+        switch (classOf(c)) {
+            case DELIMITER:
+                end = pos;
+                return delimiterKind(c);
+
+            case COMMA:
+                // Look ahead to see if it is ",@".
+                if ((pos < limit || fill(start)) && buf[pos] == '@') {
+                    pos++;
+                    end = pos;
+                    return UNQUOTE_SPLICING;
+                }
+                end = pos;
+                return UNQUOTE;
+
+            case DOUBLE_QUOTE:
+                scanString();
+                return STRING;
+
+            default:
+                while ((pos < limit || fill(start)) && classOf(buf[pos]) == CONSTITUENT) {
+                    pos++;
+                }
+                end = pos;
+                return ATOM;
+        }
+    }
+
+    // Takes the next of the tokens split already, its kind is the one of a scanned token
+    // starting with the same character
+    private int nextSplit() {
+        if (!tokens.hasNext()) {
+            start = end = 0;
+            return EOF;
+        }
+        buf = tokens.next().toCharArray();
+        start = 0;
+        end = buf.length;
+        if (end == 0) {
+            throw new IllegalArgumentException("Empty token");
+        }
+        char c = buf[0];
+        switch (classOf(c)) {
+            case DELIMITER:
+                return delimiterKind(c);
+            case COMMA:
+                return end > 1 && buf[1] == '@' ? UNQUOTE_SPLICING : UNQUOTE;
+            case DOUBLE_QUOTE:
+                if (end < 2 || buf[end - 1] != '"') {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                return STRING;
+            default:
+                return ATOM;
+        }
+    }
+
+    private static int delimiterKind(char c) {
+        switch (c) {
+            case '(':
+                return OPEN;
+            case ')':
+                return CLOSE;
+            case '[':
+                return OPEN_BRACKET;
+            case ']':
+                return CLOSE_BRACKET;
+            case '{':
+                return OPEN_BRACE;
+            case '}':
+                return CLOSE_BRACE;
+            case '\'':
+                return QUOTE;
+            default:
+                return BACKQUOTE;
+        }
+    }
+
+    String text() {
+        return new String(buf, start, end - start);
+    }
+
+    boolean textEquals(String s) {
+        int len = end - start;
+        if (len != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipComment() {
+        for (; ; ) {
+            if (pos == limit && !fill(pos)) {
+                return;
+            }
+            char c = buf[pos++];
+            if (c == '\r' || c == '\n') {
+                return;
+            }
+        }
+    }
+
+    private void scanString() {
+        char c = '"';
+        for (; ; ) {
+            if (pos == limit && !fill(start)) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char c0 = c;
+            c = buf[pos++];
+            if (c == '"' && c0 != '\\') {
+                end = pos;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads more input, keeping the characters from keepFrom on in the buffer.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill(int keepFrom) {
+        if (input == null) {
+            return false;
+        }
+        int kept = limit - keepFrom;
+        if (kept == buf.length) {
+            // A single token fills the whole buffer
+            char[] larger = new char[buf.length * 2];
+            System.arraycopy(buf, keepFrom, larger, 0, kept);
+            buf = larger;
+        } else if (keepFrom > 0) {
+            System.arraycopy(buf, keepFrom, buf, 0, kept);
+        }
+        start -= keepFrom;
+        pos -= keepFrom;
+        limit = kept;
+        try {
+            int n;
+            do {
+                n = input.read(buf, limit, buf.length - limit);
+            } while (n == 0);
+            if (n < 0) {
+                return false;
+            }
+            if (Metrics.enabled) {
+                Metrics.readerChars.addAndGet(n);
+            }
+            limit += n;
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read input", e);
+        }
+    }
+
+}
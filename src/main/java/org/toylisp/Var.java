@@ -0,0 +1,33 @@
+package org.toylisp;
+
+import java.io.Serializable;
+
+/**
+ * A mutable cell holding the value bound to a symbol in a hash based {@link Env}. Reference
+ * sites resolve the cell once and keep it, so rebinding the symbol updates the cell in place
+ * and every site sees the new value without another lookup. The value is volatile, so a
+ * definition made on one thread is fully visible to the others. <br/>
+ *
+ * @author jerry created 18/10/26
+ */
+final class Var implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final Symbol name;
+    volatile Object value;
+    // The root scope binding this var
+    transient Env owner;
+
+    Var(Symbol name, Object value, Env owner) {
+        this.name = name;
+        this.value = value;
+        this.owner = owner;
+    }
+
+    @Override
+    public String toString() {
+        return "#'" + name;
+    }
+
+}
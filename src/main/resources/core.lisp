@@ -10,18 +10,11 @@
   `(cond
     (,pred (do ,@body))))
 
-(defun cadr (lst) (car (cdr lst)))
-(defun caar (lst) (car (car lst)))
-(defun cddr (lst) (cdr (cdr lst)))
+(defmacro future (& body)
+  `(future-call (lambda () ,@body)))
 
-(defun caddr (lst) (car (cdr (cdr lst))))
-(defun caadr (lst) (car (car (cdr lst))))
-(defun cadar (lst) (car (cdr (car lst))))
-
-(defun map (f x)
-  (cond
-   (x (cons (f (car x)) (map f (cdr x))))
-   (t nil)))
+(defmacro profile (expr & file)
+  `(profile-call (lambda () ,expr) ,@file))
 
 (defmacro let (bindings & body)
   `((lambda ,(map car bindings)
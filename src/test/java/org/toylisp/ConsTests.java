@@ -37,4 +37,27 @@ public class ConsTests {
                                            cons("c", cons("d", null))));
     }
 
+    @Test
+    public void testEqualsAndHashCodeOfLongLists() {
+        Cons list1 = null;
+        Cons list2 = null;
+        for (long i = 0; i < 100000; i++) {
+            list1 = cons(i, list1);
+            list2 = cons(i, list2);
+        }
+        assertEquals(list1, list2);
+        assertEquals(list1.hashCode(), list2.hashCode());
+        assertNotEquals(list1, cons(-1L, list2));
+        assertNotEquals(list1, list2.cdr());
+
+        // The hash is the same as computed element by element
+        Cons small = _("a", _(1L, 2L), null);
+        assertEquals(31 * "a".hashCode() + 31 * _(1L, 2L).hashCode(), small.hashCode());
+        assertEquals(small.hashCode(), small.hashCode());
+        assertEquals(_("a", _(1L, 2L), null), small);
+        assertNotEquals(_("a", _(1L, 3L), null), small);
+        assertNotEquals(cons("a", "b"), cons("a", "c"));
+        assertEquals(cons("a", "b"), cons("a", "b"));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package org.toylisp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PersistentCollectionTests {
+
+    @Test
+    public void testVectorConjAndNth() {
+        PersistentVector vector = PersistentVector.EMPTY;
+        // Enough elements for a trie of three levels
+        for (int i = 0; i < 40000; i++) {
+            vector = vector.conj(i);
+        }
+        assertEquals(40000, vector.count());
+        for (int i = 0; i < 40000; i++) {
+            assertEquals(i, vector.nth(i));
+        }
+    }
+
+    @Test
+    public void testVectorAssocSharesStructure() {
+        PersistentVector vector = PersistentVector.create(0, 1, 2);
+        for (int i = 3; i < 100; i++) {
+            vector = vector.conj(i);
+        }
+        PersistentVector updated = vector.assocN(5, "five").assocN(99, "last");
+        assertEquals(5, vector.nth(5));
+        assertEquals("five", updated.nth(5));
+        assertEquals("last", updated.nth(99));
+        assertEquals(101, updated.assocN(100, "new").count());
+        assertEquals("[0 1 2]", PersistentVector.create(0, 1, 2).toString());
+        assertEquals(PersistentVector.create("a", null), PersistentVector.EMPTY.conj("a").conj(null));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testVectorIndexOutOfBounds() {
+        PersistentVector.create(1, 2).nth(2);
+    }
+
+    @Test
+    public void testMapAssocAndGet() {
+        PersistentHashMap map = PersistentHashMap.EMPTY;
+        for (int i = 0; i < 10000; i++) {
+            map = map.assoc("key" + i, i);
+        }
+        assertEquals(10000, map.count());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, map.get("key" + i, null));
+        }
+        assertNull(map.get("missing", null));
+
+        PersistentHashMap updated = map.assoc("key1", "one").assoc(null, "nil");
+        assertEquals(10001, updated.count());
+        assertEquals("one", updated.get("key1", null));
+        assertEquals(1, map.get("key1", null));
+        assertEquals("nil", updated.get(null, null));
+        assertTrue(updated.containsKey(null));
+        assertFalse(map.containsKey(null));
+    }
+
+    @Test
+    public void testMapHashCollisions() {
+        // "Aa" and "BB" have the same hash code
+        PersistentHashMap map = PersistentHashMap.create("Aa", 1, "BB", 2, "C", 3);
+        assertEquals(3, map.count());
+        assertEquals(1, map.get("Aa", null));
+        assertEquals(2, map.get("BB", null));
+        assertEquals(3, map.get("C", null));
+        assertEquals(4, map.assoc("BB", 4).get("BB", null));
+        assertEquals(3, map.assoc("BB", 4).count());
+        assertEquals(PersistentHashMap.create("BB", 2, "C", 3, "Aa", 1), map);
+    }
+
+}
@@ -1,10 +1,26 @@
 package org.toylisp;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import org.junit.Test;
 
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.toylisp.Reader.tokenize;
 import static org.toylisp.TestUtil._;
 
@@ -40,16 +56,22 @@ public class ReaderTests {
 
     @Test
     public void testTokenToObject() throws Exception {
-        assertEquals(new BigDecimal("14"), Reader.read("14", null, false));
-        assertEquals("14", Reader.read("\"14\"", null, false));
-        assertEquals(Symbol.intern("foo"), Reader.read("foo", null, false));
-        assertEquals("foo\r\ncol1\tcol2\t hello", Reader.read("\"foo\\r\\ncol1\\tcol2\\t hello\"", null, false));
+        assertEquals(14L, Reader.read("14").get(0));
+        assertEquals(new BigDecimal("1.5"), Reader.read("1.5").get(0));
+        assertEquals(new BigInteger("123456789012345678901234567890"),
+                     Reader.read("123456789012345678901234567890").get(0));
+        assertEquals("14", Reader.read("\"14\"").get(0));
+        assertEquals(Symbol.intern("foo"), Reader.read("foo").get(0));
+        assertEquals("foo\r\ncol1\tcol2\t hello", Reader.read("\"foo\\r\\ncol1\\tcol2\\t hello\"").get(0));
     }
 
     @Test
     public void testRead_NormalCases() throws Exception {
         Symbol foobar = Symbol.intern("foobar");
         assertEquals(asList((Object)_(foobar, "1", "2")), Reader.read(asList("(", "foobar", "\"1\"", "\"2\"", ")")));
+
+        // Each token is taken as a whole rather than lexed again
+        assertEquals(asList((Object) _(Symbol.intern("foo bar"), "a;b")), Reader.read(asList("(", "foo bar", "\"a;b\"", ")")));
     }
 
     @Test
@@ -94,7 +116,7 @@ public class ReaderTests {
         assertEquals(asList((Object) //To avoid warnings
                         _(_(lambda, _(arg), _(car, _(cdr, arg))), _(quote, _(a, b, c))),
                         _(def, a, "foo bar"),
-                        _(def, b, new BigDecimal("12345"))
+                        _(def, b, 12345L)
                      ),
                      Reader.read("((lambda (arg) (car (cdr arg))) '(a b c))\n" +
                                  "(def a \"foo bar\")\n" +
@@ -124,4 +146,127 @@ public class ReaderTests {
                      Reader.read("`(e f (a ,b ,@c))").get(0));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testStream() throws Exception {
+        Symbol a = Symbol.intern("a");
+        Symbol b = Symbol.intern("b");
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longString.append((char) ('a' + i % 26));
+        }
+
+        Iterator<Object> forms = Reader.stream(new StringReader("(a b) ; comment\n\"" + longString + "\" 'a (b"));
+        assertEquals(_(a, b), forms.next());
+        assertEquals(longString.toString(), forms.next());
+        assertEquals(_(quote, a), forms.next());
+        assertTrue(forms.hasNext());
+        try {
+            forms.next();
+            fail("Unmatched parentheses expected");
+        } catch (IllegalArgumentException e) {
+            // Only the broken form fails, earlier forms have already been read
+        }
+    }
+
+    @Test
+    public void testStreamTokensAcrossBufferBoundary() throws Exception {
+        // Enough atoms to refill the lexer buffer several times, so some tokens are split
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            input.append("(sym").append(i).append(' ').append(i).append(") ");
+        }
+
+        Iterator<Object> forms = Reader.stream(new StringReader(input.toString()));
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(_(Symbol.intern("sym" + i), (long) i), forms.next());
+        }
+        assertTrue(!forms.hasNext());
+    }
+
+    @Test
+    public void testFaslRoundTrip() throws Exception {
+        List<Object> forms = Reader.read("(def x '(a \"str\" -42 1.25 -0.5e-3 123456789012345678901234567890)) " +
+                                         "[x {x [1 2] nil 3}] " +
+                                         "(a (b (a nil)) ()) sym");
+        File fasl = File.createTempFile("forms", ".fasl");
+        try {
+            try (Fasl.Writer out = new Fasl.Writer(fasl)) {
+                for (Object form : forms) {
+                    out.write(form);
+                }
+                out.commit();
+            }
+
+            List<Object> decoded = new ArrayList<>();
+            try (FileChannel input = FileChannel.open(fasl.toPath(), StandardOpenOption.READ)) {
+                Iterator<Object> iter = Fasl.read(input);
+                while (iter.hasNext()) {
+                    decoded.add(iter.next());
+                }
+            }
+            assertEquals(forms, decoded);
+            assertSame(Symbol.intern("sym"), decoded.get(3));
+        } finally {
+            fasl.delete();
+        }
+    }
+
+    @Test
+    public void testDamagedFaslIsMadeAgain() throws Exception {
+        File dir = Files.createTempDirectory("fasl").toFile();
+        File source = new File(dir, "source.lisp");
+        Files.write(source.toPath(), "(def fasl-a '(a \"b\" 1.5)) (def fasl-b 'c)".getBytes(StandardCharsets.UTF_8));
+        Symbol a = Symbol.intern("fasl-a");
+        Symbol b = Symbol.intern("fasl-b");
+        Env root = Runtime.getRootEnv();
+        try {
+            Main.runFile(source, "UTF-8", dir);
+            File[] cached = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".fasl");
+                }
+            });
+            assertEquals(1, cached.length);
+            byte[] complete = Files.readAllBytes(cached[0].toPath());
+
+            // Cut inside a form, after the last form and inside the header
+            for (int length : asList(complete.length / 2, complete.length - 1, 4)) {
+                Files.write(cached[0].toPath(), Arrays.copyOf(complete, length));
+                root.set(a, null);
+                root.set(b, null);
+                Main.runFile(source, "UTF-8", dir);
+                assertEquals(_(Symbol.intern("a"), "b", new BigDecimal("1.5")), root.get(a));
+                assertSame(Symbol.intern("c"), root.get(b));
+                assertArrayEquals(complete, Files.readAllBytes(cached[0].toPath()));
+            }
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testReadVectorsAndMaps() throws Exception {
+        Symbol a = Symbol.intern("a");
+        Symbol b = Symbol.intern("b");
+        assertEquals(asList("[", "a", "]", "{", "a", "1", "}"), tokenize("[a]{a 1}"));
+        assertEquals(PersistentVector.create(a, 1L, _(b)), Reader.read("[a 1 (b)]").get(0));
+        assertEquals(PersistentHashMap.create(a, 1L, "b", PersistentVector.EMPTY), Reader.read("{a 1 \"b\" []}").get(0));
+
+        // Elements of literals in a backquote are backquoted forms
+        assertEquals(PersistentVector.create(_(quote, a), b), Reader.read("`[a ,b]").get(0));
+
+        for (String invalid : asList("[a", "[a)", "(a]", "{a}", "}")) {
+            try {
+                Reader.read(invalid);
+                fail("Expected error reading " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}
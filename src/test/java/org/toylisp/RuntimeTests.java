@@ -1,7 +1,29 @@
 package org.toylisp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -144,4 +166,657 @@ public class RuntimeTests {
         assertNull(Runtime.eval(_(cond, _(t, null)), env));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testMacroDefinedAfterCaller() {
+        Env env = Runtime.getRootEnv();
+        Object ret = null;
+        for (Object form : Reader.read("(def twice-caller (lambda (x) (twice x)))\n" +
+                                       "(defmacro twice (a) `(list ,a ,a))\n" +
+                                       "(twice-caller 'foo)")) {
+            ret = Runtime.eval(form, env);
+        }
+        Symbol foo = Symbol.intern("foo");
+        assertEquals(_(foo, foo), ret);
+    }
+
+    @Test
+    public void testNestedLexicalScopes() {
+        Symbol lambda = Symbol.intern("lambda");
+        Symbol list = Symbol.intern("list");
+        Symbol quote = Symbol.intern("quote");
+        Symbol a = Symbol.intern("a");
+        Symbol b = Symbol.intern("b");
+        Symbol rest = Symbol.intern("rest");
+        Symbol and = Symbol.intern("&");
+
+        Env env = Runtime.getRootEnv();
+        // ((lambda (a & rest) ((lambda (b a) (list a b rest)) 'y 'z)) 'x 1 2)
+        Cons code = _(_(lambda, _(a, and, rest),
+                        _(_(lambda, _(b, a),
+                            _(list, a, b, rest)),
+                          _(quote, "y"), _(quote, "z"))),
+                      _(quote, "x"), "1", "2");
+        assertEquals(_("z", "y", _("1", "2")), Runtime.eval(code, env));
+    }
+
+    @Test
+    public void testRedefinitionSeenByResolvedCallSite() {
+        Env env = Runtime.getRootEnv();
+        Cons callG = _(Symbol.intern("g"));
+        Runtime.eval(Reader.read("(def f (lambda () \"old\"))").get(0), env);
+        Runtime.eval(Reader.read("(def g (lambda () (f)))").get(0), env);
+        assertEquals("old", Runtime.eval(callG, env));
+
+        Runtime.eval(Reader.read("(def f (lambda () \"new\"))").get(0), env);
+        assertEquals("new", Runtime.eval(callG, env));
+    }
+
+    @Test
+    public void testTailCallsDoNotGrowStack() {
+        Env env = Runtime.getRootEnv();
+        for (Object form : Reader.read("(def count-down (lambda (n) (cond ((= n 0) 'done) (t (do (count-down (- n 1)))))))\n" +
+                                       "(def ping (lambda (n) (cond ((= n 0) 'ping) (t (pong (- n 1))))))\n" +
+                                       "(def pong (lambda (n) (cond ((= n 0) 'pong) (t (ping (- n 1))))))")) {
+            Runtime.eval(form, env);
+        }
+        assertEquals(Symbol.intern("done"), Runtime.eval(Reader.read("(count-down 100000)").get(0), env));
+        assertEquals(Symbol.intern("pong"), Runtime.eval(Reader.read("(ping 100001)").get(0), env));
+    }
+
+    @Test
+    public void testMacroExpansionCachedPerCallSite() {
+        Env env = Runtime.getRootEnv();
+        for (Object form : Reader.read("(def expansions '())\n" +
+                                       "(defmacro counted (a) (def expansions (cons a expansions)) a)\n" +
+                                       "(def use-counted (lambda (x) (counted x)))")) {
+            Runtime.eval(form, env);
+        }
+        Cons call = _(Symbol.intern("use-counted"), "foo");
+        Symbol expansions = Symbol.intern("expansions");
+        assertEquals("foo", Runtime.eval(call, env));
+        assertEquals("foo", Runtime.eval(call, env));
+        assertEquals(_(Symbol.intern("x")), env.get(expansions));
+
+        // Redefining the macro invalidates the cached expansion
+        Runtime.eval(Reader.read("(defmacro counted (a) \"redefined\")").get(0), env);
+        assertEquals("redefined", Runtime.eval(call, env));
+    }
+
+    @Test
+    public void testHotFunctionCompiledToBytecode() {
+        int threshold = Node.FuncBody.compileThreshold;
+        Node.FuncBody.compileThreshold = 3;
+        try {
+            Env env = Runtime.getRootEnv();
+            Runtime.eval(Reader.read("(def hot (lambda (x y)\n" +
+                                     "  (cond ((eq? x 'a) (list x y))\n" +
+                                     "        (t (do 'ignored (cond (y ((lambda () y))) (t 'none)))))))").get(0), env);
+            Symbol a = Symbol.intern("a");
+            Symbol b = Symbol.intern("b");
+            for (int i = 0; i < 5; i++) {
+                assertEquals(_(a, "foo"), Runtime.eval(Reader.read("(hot 'a \"foo\")").get(0), env));
+                assertEquals("bar", Runtime.eval(Reader.read("(hot 'b \"bar\")").get(0), env));
+                assertEquals(Symbol.intern("none"), Runtime.eval(Reader.read("(hot 'b nil)").get(0), env));
+            }
+            assertTrue(((Func) env.get(Symbol.intern("hot"))).isCompiled());
+            assertEquals(_(a, b), Runtime.eval(Reader.read("(hot 'a 'b)").get(0), env));
+        } finally {
+            Node.FuncBody.compileThreshold = threshold;
+        }
+    }
+
+    @Test
+    public void testCompiledMaxStack() {
+        Scope scope = Scope.forParams(Arrays.asList(Symbol.intern("a"), Symbol.intern("b"),
+                                                    Symbol.intern("c"), Symbol.intern("d")), null);
+        // A local read needs the env, depth and slot on the stack
+        assertEquals(3, BytecodeCompiler.maxStack(Runtime.analyze(Reader.read("(do a b c d a b c d)").get(0), scope)));
+
+        // Call sites are compiled once they have run
+        Node body = Runtime.analyze(Reader.read("(do (list a b c d) nil)").get(0), scope);
+        new Func(scope, body, Runtime.getRootEnv()).invoke(1, 2, 3, 4);
+        // The function and three args, plus a local read for the last arg
+        assertEquals(7, BytecodeCompiler.maxStack(body));
+    }
+
+    @Test
+    public void testArithmetic() {
+        Env env = Runtime.getRootEnv();
+        assertEquals(6L, Runtime.eval(Reader.read("(+ 1 2 3)").get(0), env));
+        assertEquals(-4L, Runtime.eval(Reader.read("(- 1 2 3)").get(0), env));
+        assertEquals(3L, Runtime.eval(Reader.read("(/ 7 2)").get(0), env));
+        assertEquals(new BigDecimal("3.5"), Runtime.eval(Reader.read("(+ 1 2.5)").get(0), env));
+
+        // Overflow promotes to BigInteger, and results are demoted when they fit again
+        BigInteger max = BigInteger.valueOf(Long.MAX_VALUE);
+        assertEquals(max.add(BigInteger.ONE), Runtime.eval(Reader.read("(+ 9223372036854775807 1)").get(0), env));
+        assertEquals(max.multiply(BigInteger.valueOf(2)),
+                     Runtime.eval(Reader.read("(* 9223372036854775807 2)").get(0), env));
+        assertEquals(Long.MAX_VALUE, Runtime.eval(Reader.read("(- 9223372036854775808 1)").get(0), env));
+        assertEquals(BigInteger.valueOf(Long.MIN_VALUE).negate(),
+                     Runtime.eval(Reader.read("(/ (- 0 9223372036854775807 1) (- 0 1))").get(0), env));
+
+        assertEquals(true, Runtime.eval(Reader.read("(= 2 2.0)").get(0), env));
+        assertEquals(false, Runtime.eval(Reader.read("(= 2 3)").get(0), env));
+    }
+
+    @Test
+    public void testFixedArityInvocation() {
+        Symbol pair = Symbol.intern("pair");
+        Env env = Env.createRoot().set(pair, new AFunc() {
+            @Override
+            public Object invoke2(Object arg1, Object arg2) {
+                return _(arg1, arg2);
+            }
+
+            @Override
+            public Object invoke(Object... args) {
+                throw new AssertionError("varargs entry point used for " + args.length + " args");
+            }
+        });
+        assertEquals(_("a", "b"), Runtime.eval(_(pair, "a", "b"), env));
+
+        Env root = Runtime.getRootEnv();
+        assertEquals(_("1", "2", "3", "4", "5"),
+                     Runtime.eval(Reader.read("((lambda (a b c d e) (list a b c d e)) \"1\" \"2\" \"3\" \"4\" \"5\")").get(0), root));
+        assertEquals("none", Runtime.eval(Reader.read("((lambda () \"none\"))").get(0), root));
+    }
+
+    @Test
+    public void testImageRestoresRootEnv() throws Exception {
+        Env root = Runtime.getRootEnv();
+        Runtime.eval(Reader.read("(defmacro img-quote (x) (list 'quote x))").get(0), root);
+        Runtime.eval(Reader.read("(def img-pair (lambda (x) (list x (img-quote y))))").get(0), root);
+
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        Image.write(image, 42);
+        Runtime.eval(Reader.read("(def img-pair nil)").get(0), root);
+
+        assertFalse(Image.read(new ByteArrayInputStream(image.toByteArray()), 43));
+        assertNull(Runtime.eval(Symbol.intern("img-pair"), root));
+
+        assertTrue(Image.read(new ByteArrayInputStream(image.toByteArray()), 42));
+        assertEquals(_("a", Symbol.intern("y")), Runtime.eval(Reader.read("(img-pair \"a\")").get(0), root));
+        // Builtins are bound to the live objects rather than copies
+        assertSame(Runtime.list, Runtime.eval(Symbol.intern("list"), root));
+    }
+
+    // Serialized like Image.Ref, with a field more
+    private static final class ChangedRef implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final Symbol builtin = null;
+        final int added = 1;
+    }
+
+    @Test
+    public void testImageRejectsChangedClasses() throws Exception {
+        Env root = Runtime.getRootEnv();
+        Symbol name = Symbol.intern("img-changed");
+        root.set(name, new ChangedRef());
+        try {
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            Image.write(image, 42);
+            // Rename the class in the stream to the one it imitates
+            byte[] bytes = replace(image.toByteArray(), utf(ChangedRef.class.getName()), utf("org.toylisp.Image$Ref"));
+            assertFalse(Image.read(new ByteArrayInputStream(bytes), 42));
+            assertTrue(root.get(name) instanceof ChangedRef);
+        } finally {
+            root.set(name, null);
+        }
+    }
+
+    private static byte[] utf(String s) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] replace(byte[] bytes, byte[] target, byte[] replacement) {
+        for (int i = 0; i + target.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(bytes, 0, i);
+                out.write(replacement, 0, replacement.length);
+                out.write(bytes, i + target.length, bytes.length - i - target.length);
+                return out.toByteArray();
+            }
+        }
+        throw new AssertionError("Not found");
+    }
+
+    @Test
+    public void testInterpretersAreIsolated() {
+        Interpreter a = new Interpreter();
+        Interpreter b = new Interpreter();
+
+        a.eval("(defun first (lst) (car lst))");
+        assertEquals(1L, a.eval("(first '(1 2))"));
+        try {
+            b.eval("(first '(1 2))");
+            fail("Definition leaked to another interpreter");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // A redefined core function is seen by code that already ran in the same interpreter
+        a.eval("(def car cdr)");
+        assertEquals(_(2L), a.eval("(first '(1 2))"));
+        assertEquals(1L, b.eval("(car '(1 2))"));
+        assertEquals(2L, b.eval("(cadr '(1 2))"));
+        assertEquals(_(Symbol.intern("cond"), _(Symbol.intern("x"), _(Symbol.intern("do"), Symbol.intern("y")))),
+                     b.eval("(macroexpand '(when x y))"));
+
+        // macroexpand is a function expanding the macros of its interpreter
+        a.eval("(defmacro twice (x) (list 'list x x))");
+        assertEquals(_(_(Symbol.intern("list"), 1L, 1L)), a.eval("(map macroexpand '((twice 1)))"));
+        try {
+            b.eval("(map macroexpand '((twice 1)))");
+            fail("Macro leaked to another interpreter");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentDefinitionsAndCalls() throws Exception {
+        final Env root = Runtime.getRootEnv();
+        Runtime.eval(Reader.read("(def conc-sum (lambda (n acc) (cond ((= n 0) acc) (t (conc-sum (- n 1) (+ acc n))))))").get(0), root);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final int id = i;
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        String name = "conc-value-" + id;
+                        Runtime.eval(Reader.read("(def " + name + " (conc-sum 100 " + id + "))").get(0), root);
+                        return Runtime.eval(Symbol.intern(name), root);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(5050L + i, results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFuturesAndChannels() {
+        Interpreter lisp = new Interpreter();
+        lisp.eval("(def c (chan 2))");
+        lisp.eval("(def f (future (put! c 1) (put! c 2) (put! c 3) (close! c) 'done))");
+        assertEquals(1L, lisp.eval("(take! c)"));
+        assertEquals(2L, lisp.eval("(take! c)"));
+        assertEquals(3L, lisp.eval("(take! c)"));
+        assertNull(lisp.eval("(take! c)"));
+        assertEquals(Symbol.intern("done"), lisp.eval("(deref f)"));
+        assertNull(lisp.eval("(put! c 4)"));
+
+        lisp.eval("(def a (chan))");
+        lisp.eval("(def b (chan))");
+        lisp.eval("(future (put! b \"x\"))");
+        assertEquals(_("x", lisp.eval("b")), lisp.eval("(select a b)"));
+    }
+
+    @Test
+    public void testMoreBlockedFuturesThanThreads() {
+        // Virtual threads blocked on a channel must release their carrier threads, so more
+        // futures can wait than there are processors
+        int n = 64 * java.lang.Runtime.getRuntime().availableProcessors();
+        Interpreter lisp = new Interpreter();
+        lisp.eval("(def c (chan))");
+        lisp.eval("(def out (chan))");
+        lisp.eval("(defun relay (n) (cond ((= n 0) nil) (t (do (future (put! out (take! c))) (relay (- n 1))))))");
+        lisp.eval("(defun feed (n) (cond ((= n 0) nil) (t (do (future (put! c n)) (feed (- n 1))))))");
+        lisp.eval("(defun sum (n acc) (cond ((= n 0) acc) (t (sum (- n 1) (+ acc (take! out))))))");
+        lisp.eval("(relay " + n + ")");
+        lisp.eval("(feed " + n + ")");
+        assertEquals((long) n * (n + 1) / 2, lisp.eval("(sum " + n + " 0)"));
+    }
+
+    @Test
+    public void testFuturesRunOnVirtualThreadsWhenAvailable() throws Exception {
+        boolean virtualThreads;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            virtualThreads = true;
+        } catch (NoSuchMethodException e) {
+            virtualThreads = false;
+        }
+        Future<?> future = (Future<?>) Runtime.futureCall.invoke1(new AFunc() {
+            @Override
+            public Object invoke(Object... args) {
+                return Thread.currentThread();
+            }
+        });
+        Thread thread = (Thread) future.get();
+        if (virtualThreads) {
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+        } else {
+            assertNotSame(Thread.currentThread(), thread);
+            assertTrue(thread.isDaemon());
+        }
+    }
+
+    @Test
+    public void testParallelListOperations() {
+        int threshold = Parallel.threshold;
+        Parallel.threshold = 8;
+        try {
+            Interpreter lisp = new Interpreter();
+            lisp.eval("(defun range (n acc) (cond ((= n 0) acc) (t (range (- n 1) (cons n acc)))))");
+            lisp.eval("(def nums (range 1000 nil))");
+
+            Cons squares = (Cons) lisp.eval("(pmap (lambda (x) (* x x)) nums)");
+            assertEquals(1000, squares.toList().size());
+            assertEquals(1L, squares.car());
+            assertEquals(1000000L, squares.toList().get(999));
+
+            Cons evens = (Cons) lisp.eval("(pfilter (lambda (x) (= (* (/ x 2) 2) x)) nums)");
+            assertEquals(500, evens.toList().size());
+            assertEquals(2L, evens.car());
+
+            assertEquals(500500L, lisp.eval("(preduce + 0 nums)"));
+            assertEquals(6L, lisp.eval("(preduce + 0 '(1 2 3))"));
+            assertNull(lisp.eval("(pmap car nil)"));
+        } finally {
+            Parallel.threshold = threshold;
+        }
+    }
+
+    @Test
+    public void testVectorsAndMaps() {
+        Interpreter lisp = new Interpreter();
+        lisp.eval("(def x 1)");
+        assertEquals(PersistentVector.create(1L, 2L), lisp.eval("[x (+ x 1)]"));
+        assertEquals(PersistentVector.create(Symbol.intern("x")), lisp.eval("'[x]"));
+        assertEquals(PersistentHashMap.create("one", 1L), lisp.eval("{\"one\" x}"));
+
+        lisp.eval("(def table {'a 1 'b 2})");
+        assertEquals(2L, lisp.eval("(get table 'b)"));
+        assertNull(lisp.eval("(get table 'c)"));
+        assertEquals(0L, lisp.eval("(get table 'c 0)"));
+        assertEquals(3L, lisp.eval("(get (assoc table 'c 3) 'c)"));
+        assertEquals(3L, lisp.eval("(count (conj table ['d 4]))"));
+        assertEquals(2L, lisp.eval("(count table)"));
+
+        assertEquals(PersistentVector.create(1L, 2L, 3L), lisp.eval("(conj [1 2] 3)"));
+        assertEquals(PersistentVector.create(1L, 5L), lisp.eval("(assoc [1 2] 1 5)"));
+        assertEquals(2L, lisp.eval("(get [1 2] 1)"));
+        assertEquals(_(0L, 1L), lisp.eval("(conj '(1) 0)"));
+        assertEquals(PersistentVector.create(1L, 2L), lisp.eval("(vector 1 2)"));
+        assertEquals(true, lisp.eval("(= (hash-map 'a 1) {'a 1})"));
+
+        lisp.eval("(defmacro pair (a b) `[,a ,b])");
+        assertEquals(PersistentVector.create(1L, 2L), lisp.eval("(pair x 2)"));
+    }
+
+    @Test
+    public void testLazySequences() {
+        Interpreter lisp = new Interpreter();
+        assertEquals(_(0L, 1L, 2L), lisp.eval("(take 3 (range))"));
+        assertEquals(_(5L, 3L), lisp.eval("(range 5 1 (- 0 2))"));
+        assertEquals(_(1L, 2L, 4L, 8L), lisp.eval("(take 4 (iterate (lambda (x) (* x 2)) 1))"));
+        assertEquals(true, lisp.eval("(= '(0 1) (range 2))"));
+
+        // Stages over an unbounded source only compute the elements that are read
+        lisp.eval("(def calls 0)");
+        lisp.eval("(def evens (take 3 (lazy-filter (lambda (x) (= (* (/ x 2) 2) x))" +
+                  "                     (lazy-map (lambda (x) (def calls (+ calls 1)) (* x 3)) (range)))))");
+        assertEquals(0L, lisp.eval("calls"));
+        assertEquals(0L, lisp.eval("(car evens)"));
+        assertEquals(6L, lisp.eval("(car (cdr evens))"));
+        assertEquals("(0 6 12)", lisp.eval("evens").toString());
+        assertEquals(5L, lisp.eval("calls"));
+
+        // Sequences derived from the same one share its elements, computed once each and
+        // only when they are read
+        lisp.eval("(def calls 0)");
+        lisp.eval("(def squares (lazy-map (lambda (x) (def calls (+ calls 1)) (* x x)) (range 10)))");
+        lisp.eval("(def firsts (take 2 squares))");
+        lisp.eval("(def all (lazy-filter (lambda (x) t) squares))");
+        assertEquals(0L, lisp.eval("(car all)"));
+        assertEquals(1L, lisp.eval("calls"));
+        assertEquals("(0 1)", lisp.eval("firsts").toString());
+        assertEquals(1L, lisp.eval("(car (cdr all))"));
+        assertEquals(2L, lisp.eval("calls"));
+        assertEquals("(0 1 4 9 16 25 36 49 64 81)", lisp.eval("squares").toString());
+        assertEquals(81L, lisp.eval("(nth all 9)"));
+        assertEquals(10L, lisp.eval("calls"));
+
+        // Works with the list functions of the core library
+        assertEquals(_(1L, 4L), lisp.eval("(map (lambda (x) (* x x)) (range 1 3))"));
+        assertEquals(3L, lisp.eval("(count (cons 0 (range 2)))"));
+        assertEquals(_(0L, 1L), lisp.eval("(cons 0 (lazy-filter (lambda (x) (= x 1)) '(1 2 3)))"));
+        assertFalse(Runtime.bool(lisp.eval("(lazy-filter (lambda (x) nil) [1 2])")));
+        assertEquals(_(0L, 2L), lisp.eval("(pmap (lambda (x) (* x 2)) (range 2))"));
+
+        // Long pipelines run in constant stack depth
+        assertEquals(999999L, lisp.eval("(car (lazy-filter (lambda (x) (= x 999999)) (range)))"));
+    }
+
+    @Test
+    public void testNativeListFunctions() {
+        Interpreter lisp = new Interpreter();
+        lisp.eval("(def lst '((1 2) 3 4))");
+        assertEquals(_(1L, 2L), lisp.eval("(car lst)"));
+        assertEquals(3L, lisp.eval("(cadr lst)"));
+        assertEquals(1L, lisp.eval("(caar lst)"));
+        assertEquals(2L, lisp.eval("(cadar lst)"));
+        assertEquals(4L, lisp.eval("(caddr lst)"));
+        assertEquals(_(4L), lisp.eval("(cddr lst)"));
+
+        assertEquals(_(2L, 4L), lisp.eval("(filter (lambda (x) (= (* (/ x 2) 2) x)) '(1 2 3 4))"));
+        assertEquals(10L, lisp.eval("(reduce + 0 '(1 2 3 4))"));
+        assertEquals(_(3L, 2L, 1L), lisp.eval("(reverse '(1 2 3))"));
+        assertEquals(3L, lisp.eval("(nth '(1 2 3) 2)"));
+        assertEquals(2L, lisp.eval("(nth [1 2 3] 1)"));
+        assertEquals(_(1L, 2L, 3L), lisp.eval("(append '(1) nil '(2 3))"));
+        assertEquals(3L, lisp.eval("(length '(1 2 3))"));
+
+        // Vectors are sequences too
+        assertEquals(1L, lisp.eval("(car [1 2])"));
+        assertEquals(_(2L), lisp.eval("(cdr [1 2])"));
+        assertNull(lisp.eval("(cdr [1])"));
+        assertNull(lisp.eval("(car [])"));
+        assertEquals(_(2L, 4L), lisp.eval("(map (lambda (x) (* x 2)) [1 2])"));
+        assertEquals(_(2L), lisp.eval("(filter (lambda (x) (= x 2)) [1 2])"));
+        assertEquals(3L, lisp.eval("(reduce + 0 [1 2])"));
+        try {
+            lisp.eval("(car 1)");
+            fail("car accepted a number");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Not a sequence: 1", e.getMessage());
+        }
+        assertEquals(_(2L, 3L), lisp.eval("(let ((x 1) (y 2)) (map (lambda (z) (+ z x)) (list x y)))"));
+
+        // Long lists do not exhaust the stack
+        lisp.eval("(def big (map (lambda (x) (* x 2)) (range 200000)))");
+        assertEquals(200000L, lisp.eval("(length big)"));
+        assertEquals(399998L, lisp.eval("(car (reverse big))"));
+        assertEquals(400000L, lisp.eval("(length (append big big))"));
+    }
+
+    @Test
+    public void testInternLiterals() {
+        boolean enabled = Literals.enabled;
+        Interpreter lisp = new Interpreter();
+        try {
+            Literals.enabled = false;
+            assertNotSame(lisp.eval("\"abc\""), lisp.eval("\"abc\""));
+
+            Literals.enabled = true;
+            lisp.eval("(def a '(1 (2 \"x\") 3))");
+            lisp.eval("(defun f () '(0 (2 \"x\") 3))");
+            assertSame(lisp.eval("a"), lisp.eval("'(1 (2 \"x\") 3)"));
+            assertSame(lisp.eval("(cdr a)"), lisp.eval("(cdr (f))"));
+            assertSame(lisp.eval("\"abc\""), lisp.eval("\"abc\""));
+            assertSame(lisp.eval("12345678901234567890"), lisp.eval("12345678901234567890"));
+            assertEquals(_(1L, _(2L, "x"), 3L), lisp.eval("a"));
+        } finally {
+            Literals.enabled = enabled;
+        }
+    }
+
+    @Test
+    public void testSymbolTable() throws Exception {
+        Symbol sym = Symbol.intern("symbol-table-test");
+        assertSame(sym, Symbol.intern(new String("symbol-table-test")));
+        assertEquals("symbol-table-test".hashCode(), sym.hashCode());
+
+        // The table holds symbols weakly. Collecting one is simulated by clearing and
+        // enqueuing its entry like the collector does, which it does at no given time.
+        String name = "one-off-" + System.nanoTime();
+        Symbol oneOff = Symbol.intern(name);
+        Reference<Symbol> entry = Symbol.tableEntry(name);
+        assertTrue(entry instanceof WeakReference);
+        assertSame(oneOff, entry.get());
+        entry.clear();
+        entry.enqueue();
+        Symbol again = Symbol.intern(name);
+        assertNotSame(oneOff, again);
+        // The entry of the collected symbol is replaced
+        assertNotSame(entry, Symbol.tableEntry(name));
+        assertSame(again, Symbol.tableEntry(name).get());
+        assertSame(again, Symbol.intern(name.toCharArray(), 0, name.length()));
+
+        // The var cached on a symbol belongs to a single root env
+        Env env1 = Env.createRoot().set(sym, 1L);
+        Env env2 = Env.createRoot().set(sym, 2L);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1L, env1.get(sym));
+            assertEquals(2L, env2.push().get(sym));
+        }
+        Env overlay = Env.createOverlay(env1);
+        assertEquals(1L, overlay.get(sym));
+        overlay.set(sym, 3L);
+        assertEquals(3L, overlay.get(sym));
+        assertEquals(1L, env1.get(sym));
+    }
+
+    @Test
+    public void testProfiler() throws Exception {
+        Interpreter lisp = new Interpreter();
+        lisp.eval("(defun fib (n) (cond ((= n 0) 0) ((= n 1) 1) (t (+ (fib (- n 1)) (fib (- n 2))))))");
+        lisp.eval("(defun run () (+ (fib 10) 0))");
+
+        Profiler profiler = Profiler.start();
+        try {
+            assertEquals(55L, lisp.eval("(run)"));
+        } finally {
+            profiler.stop();
+        }
+        assertNull(Profiler.current());
+
+        StringBuilder report = new StringBuilder();
+        profiler.report(report);
+        assertTrue(report.toString(), report.toString().matches("(?s).*\\nfib +177 .*"));
+        assertTrue(report.toString(), report.toString().matches("(?s).*\\nrun +1 .*"));
+        StringBuilder stacks = new StringBuilder();
+        profiler.writeCollapsed(stacks);
+        assertTrue(stacks.toString(), stacks.toString().matches("(?s)(.*\\n)?run;fib;fib \\d+\\n.*"));
+
+        File file = File.createTempFile("profile", ".txt");
+        try {
+            lisp.eval("(def file \"" + file.getPath().replace("\\", "\\\\") + "\")");
+            StringBuilder out = new StringBuilder();
+            Interpreter.setProfileOutput(out);
+            try {
+                assertEquals(5L, lisp.eval("(profile (fib 5) file)"));
+            } finally {
+                Interpreter.setProfileOutput(null);
+            }
+            assertTrue(out.toString(), out.toString().matches("(?s).*\\nfib +15 .*"));
+            String collapsed = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            assertTrue(collapsed, collapsed.contains("\nfib;fib "));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Interpreter lisp = new Interpreter();
+        lisp.eval("(defun twice (x) (* x 2))");
+        Metrics.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+
+        boolean enabled = Metrics.enabled;
+        try {
+            Metrics.enabled = false;
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            lisp.eval("(twice 1)");
+            assertEquals(0L, server.getAttribute(name, "FunctionCalls"));
+
+            server.setAttribute(name, new Attribute("Enabled", true));
+            lisp.load(new StringReader("(twice (twice 1)) (when t (twice 1))"));
+        } finally {
+            Metrics.enabled = enabled;
+        }
+        assertEquals(2L, server.getAttribute(name, "TopLevelForms"));
+        // Expanding a macro calls it as well
+        assertEquals(4L, server.getAttribute(name, "FunctionCalls"));
+        assertEquals(1L, server.getAttribute(name, "MacroExpansions"));
+        assertEquals(4L, server.getAttribute(name, "EnvFrames"));
+        assertEquals(2L, server.getAttribute(name, "ReaderForms"));
+        assertEquals(36L, server.getAttribute(name, "ReaderChars"));
+        assertTrue((Double) server.getAttribute(name, "ReaderCharsPerSecond") > 0);
+        // The cond and do of the expansion
+        assertEquals(2L, server.getAttribute(name, "SpecialForms"));
+    }
+
+    @Test
+    public void testJfrEvents() throws Exception {
+        // The JFR API is reached through reflection like in JfrEvent
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            return; // A JVM without JFR records nothing
+        }
+        Interpreter lisp = new Interpreter();
+        File dump = File.createTempFile("toylisp", ".jfr");
+        Object recording = recordingClass.newInstance();
+        boolean enabled = Metrics.enabled;
+        try {
+            for (String event : Arrays.asList("org.toylisp.Eval", "org.toylisp.MacroExpand", "org.toylisp.Read")) {
+                recordingClass.getMethod("enable", String.class).invoke(recording, event);
+            }
+            recordingClass.getMethod("start").invoke(recording);
+            Metrics.enabled = true;
+            lisp.load(new StringReader("(+ 1 2) (when t 1)"));
+            Metrics.enabled = false;
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", java.nio.file.Path.class).invoke(recording, dump.toPath());
+
+            List<String> names = new ArrayList<>();
+            List<String> macros = new ArrayList<>();
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                                            .getMethod("readAllEvents", java.nio.file.Path.class)
+                                            .invoke(null, dump.toPath());
+            for (Object event : events) {
+                Object type = event.getClass().getMethod("getEventType").invoke(event);
+                String typeName = (String) type.getClass().getMethod("getName").invoke(type);
+                names.add(typeName);
+                if (typeName.equals("org.toylisp.MacroExpand")) {
+                    macros.add((String) event.getClass().getMethod("getString", String.class).invoke(event, "macro"));
+                }
+            }
+            assertEquals(2, Collections.frequency(names, "org.toylisp.Eval"));
+            assertEquals(2, Collections.frequency(names, "org.toylisp.Read"));
+            assertEquals(Arrays.asList("when"), macros);
+        } finally {
+            Metrics.enabled = enabled;
+            recordingClass.getMethod("close").invoke(recording);
+            dump.delete();
+        }
+    }
+
+}